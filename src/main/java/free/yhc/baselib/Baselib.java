@@ -42,6 +42,9 @@ import free.yhc.baselib.adapter.LoggerAdapter;
 import free.yhc.baselib.adapter.HandlerAdapter;
 import free.yhc.baselib.adapter.NetConnAdapter;
 import free.yhc.baselib.async.HelperHandler;
+import free.yhc.baselib.async.ThreadEx;
+import free.yhc.baselib.async.VirtualThreadExecutor;
+import free.yhc.baselib.async.WorkerPool;
 import free.yhc.baselib.net.NetConn;
 
 /**
@@ -54,6 +57,18 @@ public class Baselib {
 
     private static boolean sInitialized = false;
 
+    /**
+     * Default executor on which background jobs of tasks run.
+     * Executor instance cannot be given directly to {@link #initLibrary}, because library
+     *   modules are available only after initialization.
+     * (Use {@link ThreadEx#setDefaultExecutor} after initialization for custom executor.)
+     */
+    public enum ExecMode {
+        NEW_THREAD, // New thread per task.
+        WORKER_POOL, // See WorkerPool
+        VIRTUAL_THREAD, // See VirtualThreadExecutor
+    }
+
     /*
      * Function to verify that library is initialized.
      *
@@ -66,6 +81,42 @@ public class Baselib {
             throw new AssertionError("Baselib is NOT initialized");
     }
 
+    /**
+     * For modules that may run before library is initialized (ex. default owner given to
+     *   {@link #initLibrary}).
+     */
+    public static boolean
+    isLibReady() {
+        return sInitialized;
+    }
+
+    /**
+     * Initialize library.
+     * This should be called before using any other modules in this library.
+     *
+     * @param execMode Default executor on which background jobs of tasks run.
+     */
+    public static void
+    initLibrary(@NotNull HandlerAdapter defaultOwner,
+                @NotNull LoggerAdapter loggerAdapter,
+                @NotNull NetConnAdapter netConnAdapter,
+                @NotNull ExecMode execMode) {
+        initLibrary(defaultOwner, loggerAdapter, netConnAdapter);
+        switch (execMode) {
+        case NEW_THREAD:
+            ThreadEx.setDefaultExecutor(null);
+            break;
+        case WORKER_POOL:
+            ThreadEx.setDefaultExecutor(new WorkerPool());
+            break;
+        case VIRTUAL_THREAD:
+            ThreadEx.setDefaultExecutor(VirtualThreadExecutor.get());
+            break;
+        default:
+            throw new AssertionError();
+        }
+    }
+
     /**
      * Initialize library.
      * This should be called before using any other modules in this library.
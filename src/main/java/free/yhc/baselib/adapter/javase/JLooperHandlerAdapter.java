@@ -0,0 +1,280 @@
+package free.yhc.baselib.adapter.javase;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import free.yhc.baselib.Baselib;
+import free.yhc.baselib.Logger;
+
+/**
+ * Event loop (MsgHandler) for Java SE.
+ *
+ * Runnables posted are run one-by-one, in posted order, on the thread owned by this handler.
+ * Message queue is lock-free multi-producer/single-consumer linked queue.
+ * So, posting never blocks even if lots of threads post at the same time.
+ *
+ * Shutdown is similar with Android Looper.
+ * - {@link #quit()} : pending Runnables are discarded.
+ * - {@link #quitSafely()} : pending Runnables are run before loop is finished.
+ * After quit is requested, {@link #post(Runnable)} returns false.
+ * (Runnable posted at the same moment with quit request, may be discarded.)
+ *
+ * If posted Runnable throws, the exception is logged and loop keeps running.
+ * (Unlike Android, one broken Runnable doesn't stop every task owned by this handler.)
+ */
+public class JLooperHandlerAdapter extends JHandlerAdapter {
+    // Logger is available after library initialization. But looper is usually created before it,
+    //   to be given to Baselib.initLibrary() as default owner.
+    private static volatile Logger sP = null;
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final int DEFAULT_SPIN_COUNT = 1000;
+
+    private static final int ST_RUNNING = 0;
+    private static final int ST_QUITTING_SAFELY = 1; // Run pending runnables and quit.
+    private static final int ST_QUITTING = 2; // Discard pending runnables and quit.
+    private static final int ST_TERMINATED = 3;
+
+    private final Thread mThread;
+    private final IdleStrategy mIdleStrategy;
+    private final int mBatchSize;
+    private final AtomicInteger mRunState = new AtomicInteger(ST_RUNNING);
+
+    // Producers append at tail. Only loop thread touches head.
+    private final AtomicReference<Node> mTail;
+    private Node mHead;
+    // Loop thread is (going to be) parked.
+    private volatile boolean mParked = false;
+
+    /**
+     * What loop thread does when there is nothing to run.
+     */
+    public enum IdleStrategy {
+        PARK, // Park immediately. Lowest CPU usage.
+        SPIN_THEN_PARK, // Busy-spin for a while, and then park.
+        BUSY_SPIN, // Never park. Lowest latency, but it occupies one CPU core.
+    }
+
+    private static class Node {
+        Runnable r;
+        volatile Node next = null;
+        Node(Runnable r) {
+            this.r = r;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Loop thread only
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    private boolean
+    isQEmpty() {
+        // Producer may be in the middle of linking new node (tail is moved, but not linked yet).
+        return null == mHead.next && mTail.get() == mHead;
+    }
+
+    private Runnable
+    deQ() {
+        Node next = mHead.next;
+        if (null == next) {
+            if (mTail.get() == mHead)
+                return null;
+            // Producer is linking new node. It will be done soon.
+            while (null == (next = mHead.next))
+                Thread.yield();
+        }
+        Runnable r = next.r;
+        next.r = null; // next becomes new stub node.
+        mHead = next;
+        return r;
+    }
+
+    /**
+     * @return number of Runnables run.
+     */
+    private int
+    runBatch() {
+        int n = 0;
+        Runnable r;
+        while (n < mBatchSize
+               && ST_QUITTING != mRunState.get()
+               && null != (r = deQ())) {
+            try {
+                r.run();
+            } catch (Exception | AssertionError e) {
+                logRunFailure(e);
+            }
+            n++;
+        }
+        return n;
+    }
+
+    private static void
+    logRunFailure(@NotNull Throwable e) {
+        StringWriter sw = new StringWriter();
+        e.printStackTrace(new PrintWriter(sw));
+        String msg = "Posted Runnable throws: " + sw;
+        Logger p = sP;
+        if (null == p && Baselib.isLibReady())
+            sP = p = Logger.create(JLooperHandlerAdapter.class, Logger.LOGLV_DEFAULT);
+        if (null != p)
+            p.e(msg);
+        else
+            System.err.println(msg);
+    }
+
+    private void
+    idle(int spins) {
+        if (IdleStrategy.BUSY_SPIN == mIdleStrategy
+                || (IdleStrategy.SPIN_THEN_PARK == mIdleStrategy
+                    && spins < DEFAULT_SPIN_COUNT))
+            return;
+        mParked = true;
+        // Re-check after publishing 'mParked', to not miss wake-up from producer.
+        if (isQEmpty() && ST_RUNNING == mRunState.get())
+            LockSupport.park(this);
+        mParked = false;
+    }
+
+    private void
+    loop() {
+        try {
+            int spins = 0;
+            while (true) {
+                if (runBatch() > 0) {
+                    spins = 0;
+                    continue;
+                }
+                int st = mRunState.get();
+                if (ST_QUITTING == st
+                        || (ST_QUITTING_SAFELY == st && isQEmpty()))
+                    break;
+                idle(spins++);
+            }
+        } finally {
+            mRunState.set(ST_TERMINATED);
+            // Release pending runnables.
+            mHead.next = null;
+            mTail.set(mHead);
+        }
+    }
+
+    private void
+    wakeUp() {
+        if (mParked)
+            LockSupport.unpark(mThread);
+    }
+
+    private void
+    requestQuit(int st) {
+        int cur;
+        do {
+            cur = mRunState.get();
+            // Quit can be changed only to stronger one.
+            if (cur >= st)
+                return;
+        } while (!mRunState.compareAndSet(cur, st));
+        LockSupport.unpark(mThread);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    //
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Loop thread is started in constructor.
+     *
+     * @param name Name of loop thread.
+     * @param daemon See {@link Thread#setDaemon(boolean)}.
+     * @param idleStrategy See {@link IdleStrategy}
+     * @param batchSize Maximum number of Runnables run in a row without checking quit request.
+     */
+    public JLooperHandlerAdapter(@NotNull String name,
+                                 boolean daemon,
+                                 @NotNull IdleStrategy idleStrategy,
+                                 int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batchSize should be > 0");
+        mIdleStrategy = idleStrategy;
+        mBatchSize = batchSize;
+        mHead = new Node(null);
+        mTail = new AtomicReference<>(mHead);
+        mThread = new Thread(name) {
+            @Override
+            public void
+            run() {
+                loop();
+            }
+        };
+        mThread.setDaemon(daemon);
+        mThread.start();
+    }
+
+    public JLooperHandlerAdapter(@NotNull String name) {
+        this(name, false, IdleStrategy.PARK, DEFAULT_BATCH_SIZE);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Public interfaces
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    @Override
+    @NotNull
+    public Thread
+    getThread() {
+        return mThread;
+    }
+
+    @Override
+    public boolean
+    post(@NotNull Runnable r) {
+        if (ST_RUNNING != mRunState.get())
+            return false;
+        Node n = new Node(r);
+        Node prev = mTail.getAndSet(n);
+        prev.next = n;
+        wakeUp();
+        return true;
+    }
+
+    /**
+     * Finish loop without running pending Runnables.
+     * Runnable that is running now, is not affected.
+     */
+    public void
+    quit() {
+        requestQuit(ST_QUITTING);
+    }
+
+    /**
+     * Finish loop after running all Runnables posted before this call.
+     */
+    public void
+    quitSafely() {
+        requestQuit(ST_QUITTING_SAFELY);
+    }
+
+    public boolean
+    isQuitting() {
+        return ST_RUNNING != mRunState.get();
+    }
+
+    /**
+     * Wait until loop thread is finished.
+     * @return false if timeout.
+     */
+    public boolean
+    awaitTermination(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        unit.timedJoin(mThread, timeout);
+        return !mThread.isAlive();
+    }
+}
@@ -0,0 +1,217 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.baselib.async;
+
+/**
+ * Number of tasks that can run at the same time, adjusted at runtime from observed tasks.
+ *
+ * {@link TaskManagerBase} reports every task finished at run Q (cancelled ones are excluded)
+ *   via {@link #onSample}, and uses {@link #getLimit()} as it's run-slot count.
+ * (It never exceeds {@code maxjob} given to TaskManagerBase.)
+ *
+ * Limit is always in [min, max] range.
+ * Limit is increased only when it is actually used (number of running tasks is not less than
+ *   half of limit). Otherwise, limit may grow without bound while tasks are not enough.
+ *
+ * This is THREAD-SAFE.
+ */
+public abstract class ConcurrencyLimit {
+    private final int mMin;
+    private final int mMax;
+    private volatile int mLimit;
+
+    /**
+     * Additive-increase / multiplicative-decrease.
+     * - Task failed (finished with exception) or took longer than timeout:
+     *   limit = limit * backoff
+     * - Otherwise: limit is increased by one for every 'limit' tasks finished.
+     *   (That is, by one for every round trip of all run slots.)
+     *
+     * Good if failures (ex. timeout, server busy) are clear signal of overload.
+     */
+    public static class Aimd extends ConcurrencyLimit {
+        private final long mTimeout;
+        private final double mBackoff;
+        private double mLimitD; // guarded by 'this'
+
+        /**
+         * @param timeout (ms) Task taking longer than this is regarded as failed.
+         *                0 or minus value means 'no timeout'.
+         * @param backoff (0 < backoff < 1) Ratio to decrease limit. 0.9 is good in general.
+         */
+        public Aimd(int min, int max, int initial, long timeout, double backoff) {
+            super(min, max, initial);
+            if (!(backoff > 0 && backoff < 1))
+                throw new IllegalArgumentException("backoff: " + backoff);
+            mTimeout = timeout * 1000000;
+            mBackoff = backoff;
+            mLimitD = getLimit();
+        }
+
+        public Aimd(int min, int max, int initial) {
+            this(min, max, initial, 0, 0.9);
+        }
+
+        @Override
+        protected synchronized void
+        update(long latency, int inflight, boolean failed) {
+            int limit = getLimit();
+            if (failed
+                    || (mTimeout > 0 && latency > mTimeout))
+                mLimitD = mLimitD * mBackoff;
+            else if (inflight * 2 >= limit)
+                mLimitD += 1.0 / mLimitD;
+            mLimitD = setLimit(mLimitD);
+        }
+    }
+
+    /**
+     * Gradient of latency.
+     * Long-term average latency is compared with short-term one.
+     * - short-term latency goes up over long-term one (queueing at server or local I/O):
+     *   limit is decreased in proportion.
+     * - Otherwise: limit is increased by sqrt(limit) at most.
+     * Failed task always decreases limit.
+     *
+     * Good if latency of tasks are similar (ex. tasks of similar size).
+     */
+    public static class Gradient extends ConcurrencyLimit {
+        private static final double SHORT_WINDOW = 10;
+        private static final double LONG_WINDOW = 500;
+        private static final double SMOOTHING = 0.2;
+        private final double mTolerance;
+        private double mShortLatency = -1; // guarded by 'this'
+        private double mLongLatency = -1; // guarded by 'this'
+        private double mLimitD; // guarded by 'this'
+
+        /**
+         * @param tolerance (>= 1) Short-term latency up to {@code tolerance} times long-term one
+         *                  is regarded as normal. 1.5 is good in general.
+         */
+        public Gradient(int min, int max, int initial, double tolerance) {
+            super(min, max, initial);
+            if (!(tolerance >= 1))
+                throw new IllegalArgumentException("tolerance: " + tolerance);
+            mTolerance = tolerance;
+            mLimitD = getLimit();
+        }
+
+        public Gradient(int min, int max, int initial) {
+            this(min, max, initial, 1.5);
+        }
+
+        @Override
+        protected synchronized void
+        update(long latency, int inflight, boolean failed) {
+            if (mShortLatency < 0)
+                mShortLatency = mLongLatency = latency;
+            mShortLatency += (latency - mShortLatency) / SHORT_WINDOW;
+            mLongLatency += (latency - mLongLatency) / LONG_WINDOW;
+            if (mShortLatency <= 0)
+                return;
+            double gradient = Math.max(0.5,
+                                       Math.min(1.0, mTolerance * mLongLatency / mShortLatency));
+            if (failed)
+                gradient = Math.min(gradient, 0.9);
+            double newLimit = mLimitD * gradient;
+            if (gradient >= 1.0
+                    && inflight * 2 >= getLimit())
+                newLimit += Math.sqrt(mLimitD);
+            mLimitD = setLimit(mLimitD * (1 - SMOOTHING) + newLimit * SMOOTHING);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Protected
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    protected ConcurrencyLimit(int min, int max, int initial) {
+        if (min <= 0 || min > max)
+            throw new IllegalArgumentException("min: " + min + ", max: " + max);
+        mMin = min;
+        mMax = max;
+        mLimit = Math.max(min, Math.min(max, initial));
+    }
+
+    /**
+     * @param limit New limit. It is clamped to [min, max].
+     * @return Clamped limit.
+     */
+    protected final double
+    setLimit(double limit) {
+        limit = Math.max(mMin, Math.min(mMax, limit));
+        mLimit = (int)limit;
+        return limit;
+    }
+
+    /**
+     * @param latency (ns) Time from start to finish of a task.
+     * @param inflight Number of tasks running when the task is finished (including it).
+     * @param failed true if task is finished with exception.
+     */
+    protected abstract void
+    update(long latency, int inflight, boolean failed);
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Public interfaces
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    public final int
+    getMin() {
+        return mMin;
+    }
+
+    public final int
+    getMax() {
+        return mMax;
+    }
+
+    public final int
+    getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * See {@link #update}.
+     */
+    public final void
+    onSample(long latency, int inflight, boolean failed) {
+        update(latency, inflight, failed);
+    }
+}
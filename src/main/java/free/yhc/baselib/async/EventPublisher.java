@@ -0,0 +1,429 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import free.yhc.baselib.Logger;
+
+/**
+ * Publisher delivering events to subscribers with demand-based flow control.
+ * Interfaces follow Reactive Streams (java.util.concurrent.Flow at Java 9 and above), but they
+ *   are defined here because this library should be usable at Android and old Java SE, too.
+ *
+ * Each subscriber has its own bounded buffer. Events are delivered only as many as requested
+ *   by {@link Subscription#request(long)}. If buffer is full, event is dropped by
+ *   {@link Overflow} policy of the subscriber. So, slow subscriber never makes buffer grow,
+ *   and never slows down publisher and other subscribers.
+ *
+ * Events are delivered to a subscriber one by one (never concurrently), at the executor
+ *   given at {@link #subscribe}. If executor is null, events are delivered at the thread
+ *   publishing event or requesting demand.
+ *
+ * All operations are thread-safe.
+ */
+public class EventPublisher<T> {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(EventPublisher.class, Logger.LOGLV_DEFAULT);
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    // Array is never modified. It is replaced with new one on subscribe/cancel (copy-on-write).
+    private final AtomicReference<Object[]> mSubs = new AtomicReference<>(new Object[0]);
+    private final AtomicLong mDropped = new AtomicLong(0);
+    private final Object mTermLock = new Object();
+    private volatile boolean mTerminated = false; // Written with mTermLock held.
+    private Throwable mError = null; // Protected by mTermLock.
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    //
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    public interface Subscriber<T> {
+        /**
+         * Called before any other callbacks. No event is delivered until demand is requested.
+         */
+        void onSubscribe(@NotNull Subscription subscription);
+        void onNext(@NotNull T item);
+        /**
+         * Terminal. No more callback after this.
+         */
+        void onError(@NotNull Throwable throwable);
+        /**
+         * Terminal. No more callback after this.
+         */
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * Add demand.
+         * @param n Non-positive value cancels subscription with
+         *          {@link Subscriber#onError(Throwable)}.
+         *          {@link Long#MAX_VALUE} means 'unbounded'.
+         */
+        void request(long n);
+        void cancel();
+    }
+
+    public enum Overflow {
+        DROP_OLDEST, // Drop oldest buffered event. Subscriber always sees latest events.
+        DROP_LATEST, // Drop new event. Buffered events are kept.
+    }
+
+    private class Sub implements Subscription {
+        private final Subscriber<? super T> mSubscriber;
+        private final int mCapacity;
+        private final Overflow mOverflow;
+        private final Executor mExecutor;
+        private final ArrayDeque<T> mQ;
+        // Number of drain requests. Only one thread drains at a time. See signal().
+        private final AtomicInteger mWip = new AtomicInteger(0);
+        private final Runnable mDrainer = new Runnable() {
+            @Override
+            public void
+            run() {
+                drain();
+            }
+        };
+        // Below are protected by 'this'.
+        private long mDemand = 0;
+        private boolean mClosed = false; // No more callback to subscriber.
+        private boolean mTerminated = false; // Publisher is terminated.
+        private Throwable mError = null;
+        private Throwable mBadRequest = null;
+
+        Sub(@NotNull Subscriber<? super T> subscriber,
+            int capacity,
+            @NotNull Overflow overflow,
+            Executor executor) {
+            mSubscriber = subscriber;
+            mCapacity = capacity;
+            mOverflow = overflow;
+            mExecutor = executor;
+            mQ = new ArrayDeque<>(Math.min(capacity, DEFAULT_CAPACITY));
+        }
+
+        void
+        offer(@NotNull T item) {
+            synchronized (this) {
+                if (mClosed || mTerminated)
+                    return;
+                if (mQ.size() >= mCapacity) {
+                    mDropped.incrementAndGet();
+                    if (Overflow.DROP_LATEST == mOverflow)
+                        return;
+                    mQ.pollFirst();
+                }
+                mQ.addLast(item);
+                if (0 == mDemand)
+                    return; // Delivered when demand is requested.
+            }
+            signal();
+        }
+
+        void
+        terminate(Throwable error) {
+            synchronized (this) {
+                if (mClosed || mTerminated)
+                    return;
+                mTerminated = true;
+                mError = error;
+            }
+            signal();
+        }
+
+        synchronized boolean
+        isClosed() {
+            return mClosed;
+        }
+
+        private void
+        signal() {
+            if (0 != mWip.getAndIncrement())
+                return; // Drain is in progress. It will loop once more.
+            if (null == mExecutor)
+                drain();
+            else
+                mExecutor.execute(mDrainer);
+        }
+
+        private void
+        drain() {
+            int missed = 1;
+            while (true) {
+                //noinspection StatementWithEmptyBody
+                while (drainOne()) { }
+                missed = mWip.addAndGet(-missed);
+                if (0 == missed)
+                    return;
+            }
+        }
+
+        /**
+         * Subscriber is called without lock.
+         * @return false if there is nothing to deliver now.
+         */
+        private boolean
+        drainOne() {
+            T item;
+            Throwable error;
+            synchronized (this) {
+                if (mClosed)
+                    return false;
+                if (null != mBadRequest) {
+                    error = mBadRequest;
+                    item = null;
+                } else if (mDemand > 0 && !mQ.isEmpty()) {
+                    error = null;
+                    item = mQ.pollFirst();
+                    if (Long.MAX_VALUE != mDemand)
+                        mDemand--;
+                } else if (mTerminated && mQ.isEmpty()) {
+                    error = mError;
+                    item = null;
+                } else
+                    return false;
+                if (null == item) {
+                    // Terminal.
+                    mClosed = true;
+                    mQ.clear();
+                }
+            }
+            if (null != item) {
+                try {
+                    mSubscriber.onNext(item);
+                } catch (RuntimeException e) {
+                    // Subscriber SHOULD NOT throw. Subscription is cancelled.
+                    if (DBG) P.w("Subscriber throws exception: " + e.getMessage());
+                    cancel();
+                }
+                return true;
+            }
+            removeSub(this);
+            if (null != error)
+                mSubscriber.onError(error);
+            else
+                mSubscriber.onComplete();
+            return false;
+        }
+
+        @Override
+        public void
+        request(long n) {
+            synchronized (this) {
+                if (mClosed)
+                    return;
+                if (n <= 0)
+                    mBadRequest = new IllegalArgumentException("Non-positive request: " + n);
+                else if (Long.MAX_VALUE - mDemand < n)
+                    mDemand = Long.MAX_VALUE;
+                else
+                    mDemand += n;
+            }
+            signal();
+        }
+
+        @Override
+        public void
+        cancel() {
+            synchronized (this) {
+                if (mClosed)
+                    return;
+                mClosed = true;
+                mQ.clear();
+            }
+            removeSub(this);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    //
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    private void
+    addSub(@NotNull Sub sub) {
+        Object[] ss, nss;
+        do {
+            ss = mSubs.get();
+            nss = new Object[ss.length + 1];
+            System.arraycopy(ss, 0, nss, 0, ss.length);
+            nss[ss.length] = sub;
+        } while (!mSubs.compareAndSet(ss, nss));
+    }
+
+    private void
+    removeSub(@NotNull Sub sub) {
+        Object[] ss, nss;
+        do {
+            ss = mSubs.get();
+            int i;
+            for (i = 0; i < ss.length; i++)
+                if (ss[i] == sub)
+                    break;
+            if (i >= ss.length)
+                return; // Not found.
+            nss = new Object[ss.length - 1];
+            System.arraycopy(ss, 0, nss, 0, i);
+            System.arraycopy(ss, i + 1, nss, i, ss.length - i - 1);
+        } while (!mSubs.compareAndSet(ss, nss));
+    }
+
+    private void
+    terminate(Throwable error) {
+        synchronized (mTermLock) {
+            if (mTerminated)
+                return;
+            mError = error;
+            mTerminated = true;
+        }
+        for (Object o : mSubs.get())
+            //noinspection unchecked
+            ((Sub)o).terminate(error);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    //
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    public EventPublisher() { }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    //
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Subscriber receives events published after this call.
+     * If publisher is already terminated, subscriber gets terminal callback only.
+     *
+     * @param capacity Max number of events buffered for this subscriber.
+     * @param overflow Policy to drop event if buffer is full.
+     * @param executor Executor on which subscriber callbacks except for
+     *                 {@link Subscriber#onSubscribe(Subscription)} are run.
+     *                 null to run at the thread publishing event or requesting demand.
+     */
+    @NotNull
+    public Subscription
+    subscribe(@NotNull Subscriber<? super T> subscriber,
+              int capacity,
+              @NotNull Overflow overflow,
+              Executor executor) {
+        P.bug(capacity > 0);
+        Sub sub = new Sub(subscriber, capacity, overflow, executor);
+        subscriber.onSubscribe(sub);
+        boolean terminated;
+        Throwable error;
+        synchronized (mTermLock) {
+            terminated = mTerminated;
+            error = mError;
+            if (!terminated)
+                addSub(sub);
+        }
+        if (terminated)
+            sub.terminate(error);
+        else if (sub.isClosed())
+            // Cancelled at onSubscribe().
+            removeSub(sub);
+        return sub;
+    }
+
+    /**
+     * {@link #DEFAULT_CAPACITY}, {@link Overflow#DROP_OLDEST} and no executor.
+     * See {@link #subscribe(Subscriber, int, Overflow, Executor)}.
+     */
+    @NotNull
+    public Subscription
+    subscribe(@NotNull Subscriber<? super T> subscriber) {
+        return subscribe(subscriber, DEFAULT_CAPACITY, Overflow.DROP_OLDEST, null);
+    }
+
+    /**
+     * Ignored if publisher is already terminated.
+     */
+    public void
+    publish(@NotNull T item) {
+        if (mTerminated)
+            return;
+        for (Object o : mSubs.get())
+            //noinspection unchecked
+            ((Sub)o).offer(item);
+    }
+
+    /**
+     * Subscribers get {@link Subscriber#onComplete()} after buffered events are delivered.
+     */
+    public void
+    complete() {
+        terminate(null);
+    }
+
+    /**
+     * Subscribers get {@link Subscriber#onError(Throwable)} after buffered events are delivered.
+     */
+    public void
+    fail(@NotNull Throwable error) {
+        terminate(error);
+    }
+
+    public boolean
+    isTerminated() {
+        return mTerminated;
+    }
+
+    public int
+    getSubscriberCount() {
+        return mSubs.get().length;
+    }
+
+    /**
+     * @return Number of events dropped because buffer of subscriber is full, for all subscribers.
+     */
+    public long
+    getDroppedCount() {
+        return mDropped.get();
+    }
+}
@@ -0,0 +1,410 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import free.yhc.baselib.Logger;
+import free.yhc.baselib.adapter.HandlerAdapter;
+import free.yhc.baselib.util.Util;
+
+/**
+ * TaskManagerBase for many-core environment.
+ *
+ * TaskManagerBase serializes all queue operations with one lock, and handles completion of all
+ *   tasks at owner's context.
+ * This manager
+ * - splits ready queue into several stripes, each of which has it's own lock.
+ *   Task is put to stripe selected by task id. So, adding/cancelling tasks at the same time
+ *   rarely contends.
+ * - counts run slots with atomic counter. When slot is available, the task having the highest
+ *   priority among heads of all stripes is taken (stolen) to run.
+ *   So, task priority is honored across stripes, and {@link #getJobLimit()} is never exceeded.
+ * - handles completion of a task at it's own owner's context, instead of manager owner's.
+ *   So, if tasks have different owners, completions are handled in parallel.
+ *
+ * Priority aging({@link #setPriorityAging}) is applied to stripes too. Aged priority of head of
+ *   each stripe is re-evaluated whenever the stripe is changed. So, selection between stripes
+ *   may lag behind aging a little, but task waiting long enough is taken eventually.
+ * Quota({@link #setQuota}) is NOT supported.
+ *
+ * Ordering of queue events of a task is guaranteed
+ *   (ADDED_TO_READY -> MOVED_TO_RUN -> REMOVED_FROM_RUN).
+ * But, ordering between events of different tasks is NOT guaranteed, and queue sizes notified
+ *   with events are just snapshot values.
+ */
+public class StripedTaskManager extends TaskManagerBase {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(StripedTaskManager.class, Logger.LOGLV_DEFAULT);
+
+    private final Stripe[] mStripes;
+    // Running task -> time(ns) when it is moved to run Q.
+    private final ConcurrentHashMap<TmTask, Long> mRunQ = new ConcurrentHashMap<>();
+    // Number of run slots in use. This may be larger than mRunQ.size() for a moment.
+    private final AtomicInteger mRunCnt = new AtomicInteger(0);
+    private final AtomicInteger mReadyCnt = new AtomicInteger(0);
+    private final TaskEventListener mTaskEventListener = new TaskEventListener();
+
+    // (ns) See setPriorityAging
+    private volatile long mAgingInterval = 0;
+
+    private static class Stripe {
+        final TaskReadyQ q = new TaskReadyQ(); // guarded by 'this'
+        // Priority and enqueued time(ns, System.nanoTime()) of head task of 'q'. Priority is 0 if empty.
+        // These can be read without lock to find stripe to take task from.
+        volatile int headPriority = 0;
+        volatile long headEnQTime = 0;
+
+        // Should be called with lock of 'this', whenever 'q' is changed.
+        void
+        updateHead() {
+            headPriority = q.peekPriority();
+            headEnQTime = q.peekEnQTime();
+        }
+    }
+
+    private class TaskEventListener extends TaskBase.EventListener<TmTask, Object> {
+        @Override
+        public void
+        onCancelled(@NotNull TmTask task,
+                    Object param) {
+            if (DBG) P.v("onCancelled : " + task.getUniqueName()
+                         + ", Param: " + Util.toString(param));
+            removeTaskFromRunQ(task, false, false);
+        }
+
+        @Override
+        public void
+        onPostRun(@NotNull TmTask task,
+                  Object result,
+                  Exception ex) {
+            if (DBG) P.v("onPostRun : " + task.getUniqueName()
+                         + ", Result: " + Util.toString(result)
+                         + ", Except: " + Util.toString(ex));
+            removeTaskFromRunQ(task, true, null != ex);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Private
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    @NotNull
+    private Stripe
+    stripeOf(@NotNull TmTask task) {
+        return mStripes[(int)(task.getId() % mStripes.length)];
+    }
+
+    /**
+     * @return null if all stripes are empty.
+     */
+    private Stripe
+    pickStripe() {
+        long interval = mAgingInterval;
+        long now = interval > 0 ? System.nanoTime() : 0;
+        Stripe best = null;
+        long bestPri = 0;
+        for (Stripe s : mStripes) {
+            int headPri = s.headPriority;
+            if (0 == headPri)
+                continue;
+            long pri = headPri;
+            if (interval > 0)
+                pri += (now - s.headEnQTime) / interval;
+            if (pri > bestPri) {
+                best = s;
+                bestPri = pri;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param finished true if task is finished(onPostRun). false if cancelled.
+     */
+    private void
+    removeTaskFromRunQ(@NotNull TmTask task, boolean finished, boolean failed) {
+        //noinspection unchecked
+        task.removeEventListener(mTaskEventListener);
+        int inflight = mRunCnt.get();
+        Long startTime = mRunQ.remove(task);
+        if (null != startTime) {
+            if (finished)
+                sampleRun(startTime, inflight, failed);
+            notifyTaskQEvent(TaskQEvent.REMOVED_FROM_RUN, mReadyCnt.get(), mRunQ.size(), task);
+        } else
+            P.bug(false); // This is totally unexpected!
+        mRunCnt.decrementAndGet();
+        balanceTaskQ();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Protected
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Fill all available run slots with tasks in stripes.
+     */
+    @Override
+    protected boolean
+    balanceTaskQ() {
+        boolean moved = false;
+        while (true) {
+            int n = mRunCnt.get();
+            if (n >= getJobLimit())
+                return moved;
+            Stripe s = pickStripe();
+            if (null == s)
+                return moved;
+            if (!mRunCnt.compareAndSet(n, n + 1))
+                continue;
+            TmTask task;
+            synchronized (s) {
+                task = s.q.deQ();
+                s.updateHead();
+                if (null != task) {
+                    //noinspection unchecked
+                    task.addEventListener(task.getOwner(), mTaskEventListener);
+                    mRunQ.put(task, System.nanoTime());
+                    notifyTaskQEvent(TaskQEvent.MOVED_TO_RUN,
+                                     mReadyCnt.decrementAndGet(),
+                                     mRunQ.size(),
+                                     task);
+                }
+            }
+            if (null == task) {
+                // Other took it first. Try again.
+                mRunCnt.decrementAndGet();
+                continue;
+            }
+            if (!task.start())
+                P.bug(false); // Something unexpected!
+            moved = true;
+        }
+    }
+
+    @Override
+    protected boolean
+    addTask_(@NotNull TmTask task) {
+        if (DBG) {
+            P.bug(ThreadEx.State.READY == task.getState());
+            P.v("Add task: <" + task.getName() + ">");
+        }
+        Stripe s = stripeOf(task);
+        synchronized (s) {
+            if (!s.q.enQ(task)) {
+                if (DBG) P.w("Adding duplicated task");
+                return false;
+            }
+            s.updateHead();
+            notifyTaskQEvent(TaskQEvent.ADDED_TO_READY,
+                             mReadyCnt.incrementAndGet(),
+                             mRunQ.size(),
+                             task);
+        }
+        balanceTaskQ();
+        return true;
+    }
+
+    @Override
+    protected boolean
+    cancelTask_(@NotNull TmTask task, Object cancelParam, boolean interrupt) {
+        if (DBG) P.v("Cancel task: <" + task.getName() + ">");
+        Stripe s = stripeOf(task);
+        boolean inReady;
+        synchronized (s) {
+            inReady = s.q.remove(task);
+            if (inReady) {
+                s.updateHead();
+                notifyTaskQEvent(TaskQEvent.REMOVED_FROM_READY,
+                                 mReadyCnt.decrementAndGet(),
+                                 mRunQ.size(),
+                                 task);
+            }
+        }
+        if (!inReady && !mRunQ.containsKey(task)) {
+            if (DBG) P.w("Cancel non-existing task");
+            return false;
+        }
+        //noinspection unchecked
+        task.cancel(cancelParam, interrupt);
+        return true;
+    }
+
+    /**
+     * Each stripe is locked once, and queue event is notified once per stripe.
+     */
+    @Override
+    protected int
+    addTasks_(@NotNull Collection<? extends TmTask> tasks, List<TmTask> rejected) {
+        @SuppressWarnings("unchecked")
+        ArrayList<TmTask>[] perStripe = new ArrayList[mStripes.length];
+        int n = 0;
+        for (TmTask t : tasks) {
+            if (t instanceof TaskGroup) {
+                if (addTaskGroup((TaskGroup)t))
+                    n++;
+                else if (null != rejected)
+                    rejected.add(t);
+                continue;
+            }
+            int i = (int)(t.getId() % mStripes.length);
+            if (null == perStripe[i])
+                perStripe[i] = new ArrayList<>();
+            perStripe[i].add(t);
+        }
+        for (int i = 0; i < mStripes.length; i++) {
+            if (null == perStripe[i])
+                continue;
+            Stripe s = mStripes[i];
+            ArrayList<TmTask> added = new ArrayList<>(perStripe[i].size());
+            synchronized (s) {
+                for (TmTask t : perStripe[i]) {
+                    if (DBG) P.bug(ThreadEx.State.READY == t.getState());
+                    if (s.q.enQ(t))
+                        added.add(t);
+                    else {
+                        if (DBG) P.w("Adding duplicated task");
+                        if (null != rejected)
+                            rejected.add(t);
+                    }
+                }
+                if (added.isEmpty())
+                    continue;
+                s.updateHead();
+                notifyTaskQEvents(TaskQEvent.ADDED_TO_READY,
+                                  mReadyCnt.addAndGet(added.size()),
+                                  mRunQ.size(),
+                                  added.toArray(new TmTask[added.size()]));
+            }
+            n += added.size();
+        }
+        balanceTaskQ();
+        return n;
+    }
+
+    @Override
+    protected int
+    cancelTasks_(@NotNull Collection<? extends TmTask> tasks, Object cancelParam, Boolean interrupt) {
+        int n = 0;
+        for (TmTask t : tasks) {
+            boolean intr = null == interrupt ? t.getInterruptOnCancel() : interrupt;
+            if (t instanceof TaskGroup
+                    ? cancelTaskGroup((TaskGroup)t, cancelParam, intr)
+                    : cancelTask_(t, cancelParam, intr))
+                n++;
+        }
+        return n;
+    }
+
+    protected StripedTaskManager(@NotNull HandlerAdapter owner,
+                                 int maxjob,
+                                 int stripes) {
+        super(owner, maxjob);
+        P.bug(stripes > 0);
+        mStripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++)
+            mStripes[i] = new Stripe();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Public interfaces
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * @param owner See {@link TaskManagerBase#create}
+     * @param maxjob See {@link TaskManagerBase#create}
+     * @param stripes Number of ready queue stripes. Number of CPU cores is good in general.
+     */
+    @NotNull
+    public static StripedTaskManager
+    create(@NotNull HandlerAdapter owner,
+           int maxjob,
+           int stripes) {
+        return new StripedTaskManager(owner, maxjob, stripes);
+    }
+
+    @NotNull
+    public static StripedTaskManager
+    create(@NotNull HandlerAdapter owner,
+           int maxjob) {
+        return create(owner, maxjob, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * See {@link TaskManagerBase#setPriorityAging}.
+     * Aging is applied to ready queue of every stripe, and to selection between stripes.
+     */
+    @Override
+    public void
+    setPriorityAging(long interval) {
+        mAgingInterval = TimeUnit.MILLISECONDS.toNanos(interval);
+        for (Stripe s : mStripes) {
+            synchronized (s) {
+                s.q.setAgingInterval(interval);
+                s.updateHead();
+            }
+        }
+    }
+
+    @Override
+    public TaskQType
+    contains(@NotNull TmTask t) {
+        Stripe s = stripeOf(t);
+        synchronized (s) {
+            if (s.q.contains(t))
+                return TaskQType.READY;
+        }
+        return mRunQ.containsKey(t) ? TaskQType.RUN : null;
+    }
+
+    @Override
+    public int
+    size() {
+        return mReadyCnt.get() + mRunQ.size();
+    }
+}
@@ -127,6 +127,26 @@ public abstract class Task<ResultT> extends TaskBase<ResultT> {
         super.publishProgress(prog);
     }
 
+    /**
+     * Progress published within {@code ms} from the last one, is dropped.
+     * Default is 500ms.
+     *
+     * This can be changed only before task is started.
+     * @return 'false' if task is already started.
+     */
+    public final boolean
+    setPublishProgressMinInterval(long ms) {
+        if (!isReady())
+            return false;
+        mPublishProgressMinInterval = ms;
+        return true;
+    }
+
+    public final long
+    getPublishProgressMinInterval() {
+        return mPublishProgressMinInterval;
+    }
+
     // ========================================================================
     //
     // ========================================================================
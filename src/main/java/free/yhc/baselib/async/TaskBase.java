@@ -38,7 +38,9 @@ package free.yhc.baselib.async;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import free.yhc.baselib.Logger;
 import free.yhc.baselib.adapter.HandlerAdapter;
@@ -59,12 +61,45 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
     // default interrupt value of this task.
     private final boolean mInterruptOnCancel; // default(false)
 
-    // Synchronization is required.
-    private final LinkedHashMap<
-            EventListener<
-                    ? extends TaskBase,
-                    ? super ResultT>,
-            HandlerAdapter> mEventListenerMap = new LinkedHashMap<>();
+    /* Listeners in registered order.
+     * Array is never modified. It is replaced with new one on add/remove (copy-on-write).
+     * So, dispatching events just scans current snapshot without any lock.
+     */
+    private static final ListenerEntry[] sNoListener = new ListenerEntry[0];
+    private final AtomicReference<ListenerEntry[]> mEventListeners
+            = new AtomicReference<>(sNoListener);
+    // See getEventPublisher().
+    private final AtomicReference<EventPublisher<Event>> mEventPublisher
+            = new AtomicReference<>(null);
+    // See toFuture().
+    private final AtomicReference<TaskFuture<ResultT>> mFuture = new AtomicReference<>(null);
+    // See setProgressCoalescing().
+    private volatile boolean mCoalesceProgress = false;
+    private final AtomicLong mProgSlot = new AtomicLong(0);
+    private final AtomicBoolean mProgPending = new AtomicBoolean(false);
+    private final Runnable mProgDeliverer = new Runnable() {
+        @Override
+        public void
+        run() {
+            // Clear pending flag before reading slot. So, value published after this,
+            //   is always delivered by next post.
+            mProgPending.set(false);
+            onProgress(mProgSlot.get());
+        }
+    };
+
+    private static class ListenerEntry {
+        final EventListener listener;
+        final HandlerAdapter owner;
+        // Used only in progress coalescing mode. See setProgressCoalescing().
+        final AtomicLong prog = new AtomicLong(0);
+        final AtomicBoolean progPending = new AtomicBoolean(false);
+        ListenerEntry(@NotNull EventListener listener,
+                      @NotNull HandlerAdapter owner) {
+            this.listener = listener;
+            this.owner = owner;
+        }
+    }
 
     public static class EventListener<TaskT extends TaskBase, ResultT> {
         @SuppressWarnings("unused")
@@ -83,6 +118,41 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
         public void onProgress(@NotNull TaskT task, long progress) { }
     }
 
+    /**
+     * Event delivered by {@link #getEventPublisher()}.
+     */
+    public static class Event {
+        public enum Type {
+            STARTED,
+            PROGRESS_INIT, // 'progress' is max progress.
+            PROGRESS,
+            CANCEL, // 'param' is cancel param.
+            CANCELLED, // 'param' is cancel param. 'exception' is exception of task, if there is.
+            POST_RUN, // 'result' and 'exception' are valid.
+        }
+
+        public final TaskBase task;
+        public final Type type;
+        public final long progress;
+        public final Object result;
+        public final Exception exception;
+        public final Object param;
+
+        Event(@NotNull TaskBase task,
+              @NotNull Type type,
+              long progress,
+              Object result,
+              Exception exception,
+              Object param) {
+            this.task = task;
+            this.type = type;
+            this.progress = progress;
+            this.result = result;
+            this.exception = exception;
+            this.param = param;
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     //
     // Privates
@@ -106,6 +176,30 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
             return mCancelParam;
         }
     }
+
+    private void
+    publishEvent(@NotNull Event.Type type,
+                 long progress,
+                 Object result,
+                 Exception ex,
+                 Object param) {
+        EventPublisher<Event> pub = mEventPublisher.get();
+        if (null == pub)
+            return;
+        pub.publish(new Event(this, type, progress, result, ex, param));
+        if (Event.Type.POST_RUN == type
+                || Event.Type.CANCELLED == type)
+            pub.complete();
+    }
+
+    private static int
+    indexOfListener(@NotNull ListenerEntry[] es, @NotNull EventListener listener) {
+        for (int i = 0; i < es.length; i++) {
+            if (es[i].listener.equals(listener))
+                return i;
+        }
+        return -1;
+    }
     ///////////////////////////////////////////////////////////////////////////
     //
     // Templates
@@ -215,21 +309,18 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
     onStarted() {
         super.onStarted();
         onEarlyStarted();
-        synchronized (mEventListenerMap) {
-            for (final EventListener l : mEventListenerMap.keySet()) {
-                HandlerAdapter h = mEventListenerMap.get(l);
-                P.bug(null != h);
-                assert h != null;
-                if (!h.post(new Runnable() {
-                    @Override
-                    public void
-                    run() {
-                        //noinspection unchecked
-                        l.onStarted(TaskBase.this);
-                    }
-                })) { P.bug(); }
-            }
+        for (ListenerEntry e : mEventListeners.get()) {
+            final EventListener l = e.listener;
+            if (!e.owner.post(new Runnable() {
+                @Override
+                public void
+                run() {
+                    //noinspection unchecked
+                    l.onStarted(TaskBase.this);
+                }
+            })) { P.bug(); }
         }
+        publishEvent(Event.Type.STARTED, 0, null, null, null);
         onLateStarted();
     }
 
@@ -237,21 +328,18 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
     final protected void
     onPostRun(final ResultT result, final Exception ex) {
         onEarlyPostRun(result, ex);
-        synchronized (mEventListenerMap) {
-            for (final EventListener l : mEventListenerMap.keySet()) {
-                HandlerAdapter h = mEventListenerMap.get(l);
-                P.bug(null != h);
-                assert h != null;
-                if (!h.post(new Runnable() {
-                    @Override
-                    public void
-                    run() {
-                        //noinspection unchecked
-                        l.onPostRun(TaskBase.this, result, ex);
-                    }
-                })) { P.bug(); }
-            }
+        for (ListenerEntry e : mEventListeners.get()) {
+            final EventListener l = e.listener;
+            if (!e.owner.post(new Runnable() {
+                @Override
+                public void
+                run() {
+                    //noinspection unchecked
+                    l.onPostRun(TaskBase.this, result, ex);
+                }
+            })) { P.bug(); }
         }
+        publishEvent(Event.Type.POST_RUN, 0, result, ex, null);
         onLatePostRun(result, ex);
         super.onPostRun(result, ex);
     }
@@ -262,22 +350,19 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
         super.onCancel(started);
         final Object cancelParam = getCancelParam();
         onEarlyCancel(started, cancelParam);
-        synchronized (mEventListenerMap) {
-            for (final EventListener l : mEventListenerMap.keySet()) {
-                HandlerAdapter h = mEventListenerMap.get(l);
-                P.bug(null != h);
-                assert h != null;
-                if (!h.post(new Runnable() {
-                    @Override
-                    public void
-                    run() {
-                        P.bug(cancelParam == TaskBase.this.getCancelParam());
-                        //noinspection unchecked
-                        l.onCancel(TaskBase.this, cancelParam);
-                    }
-                })) { P.bug(); }
-            }
+        for (ListenerEntry e : mEventListeners.get()) {
+            final EventListener l = e.listener;
+            if (!e.owner.post(new Runnable() {
+                @Override
+                public void
+                run() {
+                    P.bug(cancelParam == TaskBase.this.getCancelParam());
+                    //noinspection unchecked
+                    l.onCancel(TaskBase.this, cancelParam);
+                }
+            })) { P.bug(); }
         }
+        publishEvent(Event.Type.CANCEL, 0, null, null, cancelParam);
         onLateCancel(started, cancelParam);
     }
 
@@ -286,22 +371,19 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
     onCancelled(Exception ex) {
         final Object cancelParam = getCancelParam();
         onEarlyCancelled(ex, cancelParam);
-        synchronized (mEventListenerMap) {
-            for (final EventListener l : mEventListenerMap.keySet()) {
-                HandlerAdapter h = mEventListenerMap.get(l);
-                P.bug(null != h);
-                assert h != null;
-                if (!h.post(new Runnable() {
-                    @Override
-                    public void
-                    run() {
-                        P.bug(cancelParam == TaskBase.this.getCancelParam());
-                        //noinspection unchecked
-                        l.onCancelled(TaskBase.this, cancelParam);
-                    }
-                })) { P.bug(); }
-            }
+        for (ListenerEntry e : mEventListeners.get()) {
+            final EventListener l = e.listener;
+            if (!e.owner.post(new Runnable() {
+                @Override
+                public void
+                run() {
+                    P.bug(cancelParam == TaskBase.this.getCancelParam());
+                    //noinspection unchecked
+                    l.onCancelled(TaskBase.this, cancelParam);
+                }
+            })) { P.bug(); }
         }
+        publishEvent(Event.Type.CANCELLED, 0, null, ex, cancelParam);
         onLateCancelled(ex, cancelParam);
         super.onCancelled(ex);
     }
@@ -311,21 +393,18 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
     onProgressInit(final long maxProg) {
         super.onProgressInit(maxProg);
         onEarlyProgressInit(maxProg);
-        synchronized (mEventListenerMap) {
-            for (final EventListener l : mEventListenerMap.keySet()) {
-                HandlerAdapter h = mEventListenerMap.get(l);
-                P.bug(null != h);
-                assert h != null;
-                if (!h.post(new Runnable() {
-                    @Override
-                    public void
-                    run() {
-                        //noinspection unchecked
-                        l.onProgressInit(TaskBase.this, maxProg);
-                    }
-                })) { P.bug(); }
-            }
+        for (ListenerEntry e : mEventListeners.get()) {
+            final EventListener l = e.listener;
+            if (!e.owner.post(new Runnable() {
+                @Override
+                public void
+                run() {
+                    //noinspection unchecked
+                    l.onProgressInit(TaskBase.this, maxProg);
+                }
+            })) { P.bug(); }
         }
+        publishEvent(Event.Type.PROGRESS_INIT, maxProg, null, null, null);
         onLateProgressInit(maxProg);
     }
 
@@ -334,24 +413,46 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
     onProgress(final long prog) {
         super.onProgress(prog);
         onEarlyProgress(prog);
-        synchronized (mEventListenerMap) {
-            for (final EventListener l : mEventListenerMap.keySet()) {
-                HandlerAdapter h = mEventListenerMap.get(l);
-                P.bug(null != h);
-                assert h != null;
-                if (!h.post(new Runnable() {
+        final boolean coalescing = isProgressCoalescing();
+        for (final ListenerEntry e : mEventListeners.get()) {
+            final EventListener l = e.listener;
+            if (coalescing) {
+                e.prog.set(prog);
+                if (e.progPending.getAndSet(true))
+                    continue; // Pending notification will deliver this value.
+                if (!e.owner.post(new Runnable() {
                     @Override
                     public void
                     run() {
+                        e.progPending.set(false);
                         //noinspection unchecked
-                        l.onProgress(TaskBase.this, prog);
+                        l.onProgress(TaskBase.this, e.prog.get());
                     }
                 })) { P.bug(); }
+                continue;
             }
+            if (!e.owner.post(new Runnable() {
+                @Override
+                public void
+                run() {
+                    //noinspection unchecked
+                    l.onProgress(TaskBase.this, prog);
+                }
+            })) { P.bug(); }
         }
+        publishEvent(Event.Type.PROGRESS, prog, null, null, null);
         onLateProgress(prog);
     }
 
+    @Override
+    void
+    onBgFinished() {
+        super.onBgFinished();
+        TaskFuture<ResultT> f = mFuture.get();
+        if (null != f)
+            f.completeByTask();
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     //
     // Package private
@@ -365,10 +466,8 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
      */
     void
     clearEventListener() {
-        synchronized (mEventListenerMap) {
-            if (DBG) P.w(getLogPrefix() + "clear event listener");
-            mEventListenerMap.clear();
-        }
+        if (DBG) P.w(getLogPrefix() + "clear event listener");
+        mEventListeners.set(sNoListener);
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -392,6 +491,7 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
     public static abstract class Builder<B extends Builder, T extends TaskBase>
             extends ThreadEx.Builder<B, T> {
         protected boolean mInterruptOnCancel = true;
+        protected boolean mCoalesceProgress = false;
 
         @NotNull
         public B
@@ -400,6 +500,26 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
             //noinspection unchecked
             return (B)this;
         }
+
+        /**
+         * See {@link TaskBase#setProgressCoalescing(boolean)}.
+         */
+        @NotNull
+        public B
+        setProgressCoalescing(boolean val) {
+            mCoalesceProgress = val;
+            //noinspection unchecked
+            return (B)this;
+        }
+
+        @NotNull
+        @Override
+        protected <X extends T> X
+        applyOptions(@NotNull X t) {
+            super.applyOptions(t);
+            t.setProgressCoalescing(mCoalesceProgress);
+            return t;
+        }
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -418,6 +538,104 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
         }
     }
 
+    /**
+     * Publisher of events of this task, for many subscribers with flow control.
+     * Unlike {@link EventListener}, event is not posted to each subscriber's owner.
+     * Events are published once at owner context of this task, and delivered to subscribers
+     *   by demand. See {@link EventPublisher}.
+     * Publisher is completed after {@link Event.Type#POST_RUN} or {@link Event.Type#CANCELLED}.
+     * Publisher got after task is finished, is already completed.
+     */
+    @NotNull
+    public final EventPublisher<Event>
+    getEventPublisher() {
+        EventPublisher<Event> pub = mEventPublisher.get();
+        if (null != pub)
+            return pub;
+        if (!mEventPublisher.compareAndSet(null, new EventPublisher<Event>()))
+            return mEventPublisher.get();
+        final EventPublisher<Event> newPub = mEventPublisher.get();
+        switch (getState()) {
+        case DONE:
+        case CANCELLED:
+            /* Final callback is already posted to owner, but may be run before publisher is
+             *   set. Completed after it (publishing after completion is ignored).
+             */
+            if (!getOwner().post(new Runnable() {
+                @Override
+                public void
+                run() {
+                    newPub.complete();
+                }
+            })) { P.bug(); }
+            break;
+        case TERMINATED:
+        case TERMINATED_CANCELLED:
+            newPub.complete();
+            break;
+        default:
+        }
+        return newPub;
+    }
+
+    /**
+     * Future completed directly when background job is finished (at worker thread), not at
+     *   owner. See {@link TaskFuture}.
+     * Task cancelled before started, is completed at owner context.
+     * Same future is returned for all calls. This can be called at any state of task.
+     */
+    @NotNull
+    public final TaskFuture<ResultT>
+    toFuture() {
+        TaskFuture<ResultT> f = mFuture.get();
+        if (null != f)
+            return f;
+        if (!mFuture.compareAndSet(null, new TaskFuture<>(this)))
+            return mFuture.get();
+        f = mFuture.get();
+        // Task may be finished before future is set.
+        f.completeByTask();
+        return f;
+    }
+
+    /**
+     * In coalescing mode, {@link #publishProgress(long)} just updates latest progress value, and
+     *   at most one progress notification is pending at owner for this task (and for each
+     *   event listener).
+     * So, owner always sees latest value, and message queue of owner doesn't grow even if
+     *   progress is published much more often than owner can handle.
+     * Intermediate values may be skipped.
+     *
+     * This can be changed only before task is started.
+     * @return 'false' if task is already started.
+     */
+    public final boolean
+    setProgressCoalescing(boolean val) {
+        if (!isReady())
+            return false;
+        mCoalesceProgress = val;
+        return true;
+    }
+
+    public final boolean
+    isProgressCoalescing() {
+        return mCoalesceProgress;
+    }
+
+    @Override
+    public void
+    publishProgress(long prog) {
+        if (!mCoalesceProgress) {
+            super.publishProgress(prog);
+            return;
+        }
+        P.bug(isProgressStarted() && isActive(), getLogPrefix());
+        mProgSlot.set(prog);
+        if (!mProgPending.getAndSet(true)
+                && !getOwner().post(mProgDeliverer))
+            P.bug();
+    }
+
     public final boolean
     getInterruptOnCancel() {
         return mInterruptOnCancel;
@@ -447,15 +665,18 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
     addEventListener(
             @NotNull HandlerAdapter listenerOwner,
             @NotNull EventListener<? extends TaskBase, ? super ResultT> listener) {
-        synchronized (mEventListenerMap) {
-            if (mEventListenerMap.containsKey(listener)) {
+        ListenerEntry[] es, nes;
+        do {
+            es = mEventListeners.get();
+            if (indexOfListener(es, listener) >= 0) {
                 if (DBG) P.w(getLogPrefix() + "add duplicated listener: ignored");
                 return false;
-            } else {
-                mEventListenerMap.put(listener, listenerOwner);
-                return true;
             }
-        }
+            nes = new ListenerEntry[es.length + 1];
+            System.arraycopy(es, 0, nes, 0, es.length);
+            nes[es.length] = new ListenerEntry(listener, listenerOwner);
+        } while (!mEventListeners.compareAndSet(es, nes));
+        return true;
     }
 
     /**
@@ -474,12 +695,18 @@ public abstract class TaskBase<ResultT> extends ThreadEx<ResultT> {
     public boolean
     removeEventListener(
             @NotNull EventListener<? extends TaskBase, ? super ResultT> listener) {
-        synchronized (mEventListenerMap) {
-            if (null == mEventListenerMap.remove(listener)) {
+        ListenerEntry[] es, nes;
+        do {
+            es = mEventListeners.get();
+            int i = indexOfListener(es, listener);
+            if (i < 0) {
                 if (DBG) P.w(getLogPrefix() + "remove non-existing listener");
                 return false;
             }
-        }
+            nes = 1 == es.length ? sNoListener : new ListenerEntry[es.length - 1];
+            System.arraycopy(es, 0, nes, 0, i);
+            System.arraycopy(es, i + 1, nes, i, es.length - i - 1);
+        } while (!mEventListeners.compareAndSet(es, nes));
         return true;
     }
 }
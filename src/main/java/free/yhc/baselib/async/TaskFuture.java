@@ -0,0 +1,392 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import free.yhc.baselib.Logger;
+
+/**
+ * {@link Future} view of {@link TaskBase}. See {@link TaskBase#toFuture()}.
+ *
+ * Future is completed directly at the thread finishing background job of the task, without
+ *   going through owner of the task. So, tasks can be chained without owner-thread round trip
+ *   (See {@link #then(Next)} and {@link #allOf(TaskFuture[])}).
+ * - Result of {@link ThreadEx#doAsync()} : {@link #get()} returns it.
+ * - Exception of {@link ThreadEx#doAsync()} : {@link #get()} throws {@link ExecutionException}
+ *     having it as cause.
+ * - Cancelled : {@link #get()} throws {@link CancellationException}.
+ *     {@link #getException()} still gives exception of cancelled task, if there is.
+ *
+ * Future doesn't wait owner callbacks (ex. onPostRun). They may be run after future is done.
+ */
+public class TaskFuture<R> implements Future<R> {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(TaskFuture.class, Logger.LOGLV_DEFAULT);
+
+    private static final int ST_RUNNING = 0;
+    private static final int ST_DONE = 1;
+    private static final int ST_CANCELLED = 2;
+
+    // null for futures made by composition. See then() and allOf().
+    private final ThreadEx<R> mTask;
+    private final Object mLock = new Object();
+    // Below are protected by mLock.
+    private int mState = ST_RUNNING;
+    private R mResult = null;
+    private Exception mExcept = null;
+    private ArrayList<Listener<R>> mListeners = new ArrayList<>();
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    //
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    public interface Listener<R> {
+        /**
+         * Called once when future is done, at the thread completing future (usually, worker
+         *   thread of the task). So, it SHOULD be short and SHOULD NOT block.
+         * If future is already done when listener is added, called immediately at the caller.
+         */
+        void onDone(@NotNull TaskFuture<R> future);
+    }
+
+    public interface Next<R, U> {
+        /**
+         * See {@link TaskFuture#then(Next)}.
+         * @return Future of next stage. Usually, {@link TaskBase#toFuture()} of started task.
+         */
+        @NotNull
+        TaskFuture<U> next(R result) throws Exception;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    //
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * @return false if future is already done.
+     */
+    boolean
+    complete(R result, Exception ex, boolean cancelled) {
+        ArrayList<Listener<R>> ls;
+        synchronized (mLock) {
+            if (ST_RUNNING != mState)
+                return false;
+            mState = cancelled ? ST_CANCELLED : ST_DONE;
+            mResult = result;
+            mExcept = ex;
+            ls = mListeners;
+            mListeners = null;
+            mLock.notifyAll();
+        }
+        for (Listener<R> l : ls)
+            notifyListener(l);
+        return true;
+    }
+
+    /**
+     * Complete future if task is in final state. Otherwise, nothing happens.
+     */
+    void
+    completeByTask() {
+        P.bug(null != mTask);
+        switch (mTask.getState()) {
+        case DONE:
+        case TERMINATED:
+            complete(mTask.getResult(), mTask.getException(), false);
+            break;
+        case CANCELLED:
+        case TERMINATED_CANCELLED:
+            complete(null, mTask.getException(), true);
+            break;
+        default:
+            // Not finished yet.
+        }
+    }
+
+    private void
+    notifyListener(@NotNull Listener<R> l) {
+        try {
+            l.onDone(this);
+        } catch (RuntimeException e) {
+            // Listener SHOULD NOT break the thread completing future (ex. worker thread).
+            if (DBG) P.w("Listener throws exception: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Task in TaskManager is cancelled through the manager. Otherwise, it is left in queue of
+     *   the manager.
+     */
+    private boolean
+    cancelTask(boolean interrupt) {
+        if (mTask instanceof TmTask) {
+            TmTask t = (TmTask)mTask;
+            TaskManagerBase tm = t.getManager();
+            if (null != tm
+                    && !(t instanceof TaskGroup)
+                    && tm.cancelTask(t, null, interrupt))
+                return true;
+            // Not in manager (not added yet, or already removed).
+        }
+        return mTask.cancel(interrupt);
+    }
+
+    private void
+    await() throws InterruptedException {
+        synchronized (mLock) {
+            while (ST_RUNNING == mState)
+                mLock.wait();
+        }
+    }
+
+    private R
+    report() throws ExecutionException {
+        synchronized (mLock) {
+            if (ST_CANCELLED == mState)
+                throw new CancellationException();
+            if (null != mExcept)
+                throw new ExecutionException(mExcept);
+            return mResult;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    //
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    TaskFuture(ThreadEx<R> task) {
+        mTask = task;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    //
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Cancel task by {@link ThreadEx#cancel(boolean)}, and future is cancelled immediately
+     *   without waiting task is finished.
+     * {@link TmTask} added to {@link TaskManagerBase} is cancelled by
+     *   {@link TaskManagerBase#cancelTask(TmTask, Object, boolean)}.
+     * For future made by composition, future is just cancelled. Preceding stages are not
+     *   cancelled.
+     */
+    @Override
+    public boolean
+    cancel(boolean mayInterruptIfRunning) {
+        if (null != mTask
+                && !cancelTask(mayInterruptIfRunning))
+            return isCancelled(); // Task is already finished (or cancelled).
+        return complete(null, null, true) || isCancelled();
+    }
+
+    @Override
+    public boolean
+    isCancelled() {
+        synchronized (mLock) {
+            return ST_CANCELLED == mState;
+        }
+    }
+
+    @Override
+    public boolean
+    isDone() {
+        synchronized (mLock) {
+            return ST_RUNNING != mState;
+        }
+    }
+
+    @Override
+    public R
+    get() throws InterruptedException, ExecutionException {
+        await();
+        return report();
+    }
+
+    @Override
+    public R
+    get(long timeout, @NotNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long due = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mLock) {
+            while (ST_RUNNING == mState) {
+                long remains = due - System.nanoTime();
+                if (remains <= 0)
+                    throw new TimeoutException();
+                TimeUnit.NANOSECONDS.timedWait(mLock, remains);
+            }
+        }
+        return report();
+    }
+
+    /**
+     * @return Task of this future. null if future is made by composition.
+     */
+    public ThreadEx<R>
+    getTask() {
+        return mTask;
+    }
+
+    /**
+     * @return Exception of task. Valid only after future is done.
+     */
+    public Exception
+    getException() {
+        synchronized (mLock) {
+            return mExcept;
+        }
+    }
+
+    public void
+    addListener(@NotNull Listener<R> listener) {
+        synchronized (mLock) {
+            if (ST_RUNNING == mState) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    /**
+     * Run next stage with result of this future, as soon as this future is done successfully.
+     * {@code next} is called at the thread completing this future.
+     * Exception and cancellation of this future are passed to returned future as they are,
+     *   and {@code next} is not called.
+     * Exception thrown by {@code next} is passed to returned future.
+     *
+     * @return Future completed by future returned from {@code next}.
+     */
+    @NotNull
+    public <U> TaskFuture<U>
+    then(@NotNull final Next<R, U> next) {
+        final TaskFuture<U> f = new TaskFuture<>(null);
+        addListener(new Listener<R>() {
+            @Override
+            public void
+            onDone(@NotNull TaskFuture<R> prev) {
+                // f is completed out of lock of prev, not to run listeners of f with it.
+                boolean cancelled;
+                Exception ex;
+                R r;
+                synchronized (prev.mLock) {
+                    cancelled = ST_CANCELLED == prev.mState;
+                    ex = prev.mExcept;
+                    r = prev.mResult;
+                }
+                if (cancelled || null != ex) {
+                    f.complete(null, ex, cancelled);
+                    return;
+                }
+                TaskFuture<U> nf;
+                try {
+                    nf = next.next(r);
+                } catch (Exception e) {
+                    f.complete(null, e, false);
+                    return;
+                }
+                nf.addListener(new Listener<U>() {
+                    @Override
+                    public void
+                    onDone(@NotNull TaskFuture<U> nf) {
+                        boolean cancelled;
+                        Exception ex;
+                        U r;
+                        synchronized (nf.mLock) {
+                            cancelled = ST_CANCELLED == nf.mState;
+                            ex = nf.mExcept;
+                            r = nf.mResult;
+                        }
+                        f.complete(r, ex, cancelled);
+                    }
+                });
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Returned future is done when all {@code futures} are done. Result is always null.
+     * If one of them has exception, returned future has exception of the first one in
+     *   {@code futures} order. Otherwise, if one of them is cancelled, it is cancelled.
+     */
+    @NotNull
+    public static TaskFuture<Void>
+    allOf(@NotNull final TaskFuture<?>... futures) {
+        final TaskFuture<Void> f = new TaskFuture<>(null);
+        if (0 == futures.length) {
+            f.complete(null, null, false);
+            return f;
+        }
+        final AtomicInteger remains = new AtomicInteger(futures.length);
+        Listener l = new Listener() {
+            @Override
+            public void
+            onDone(@NotNull TaskFuture future) {
+                if (0 != remains.decrementAndGet())
+                    return;
+                // All done.
+                boolean cancelled = false;
+                for (TaskFuture<?> tf : futures) {
+                    Exception ex = tf.getException();
+                    if (null != ex && !tf.isCancelled()) {
+                        f.complete(null, ex, false);
+                        return;
+                    }
+                    cancelled |= tf.isCancelled();
+                }
+                f.complete(null, null, cancelled);
+            }
+        };
+        for (TaskFuture<?> tf : futures)
+            //noinspection unchecked
+            tf.addListener(l);
+        return f;
+    }
+}
@@ -0,0 +1,418 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import free.yhc.baselib.Logger;
+import free.yhc.baselib.adapter.HandlerAdapter;
+import free.yhc.baselib.util.Util;
+
+/**
+ * Runs tasks having dependencies (DAG: Directed Acyclic Graph).
+ *
+ * - Task is started as soon as all tasks it depends on are finished successfully.
+ * - If a task fails (finished with exception) or is cancelled, tasks depending on it directly
+ *   or indirectly are cancelled without being started.
+ *   If stopOnException is set, all remaining tasks are cancelled on first failure.
+ * - Progress of graph is number of finished (including cancelled) tasks.
+ * - Graph doesn't occupy any thread while tasks are running. (See
+ *   {@link ThreadEx#deferCompletion()}.)
+ *
+ * Tasks should be added before graph is started, and dependencies of a task should be added
+ *   before the task. So, there is no way to make a cycle.
+ * If TaskManagerBase is given, tasks are run via the manager. Otherwise tasks are started
+ *   directly.
+ * Tasks SHOULD have the same owner with graph.
+ */
+public class TaskGraph extends Task<Task> {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(TaskGraph.class, Logger.LOGLV_DEFAULT);
+
+    private static final int NODE_WAITING = 0; // waiting for dependencies
+    private static final int NODE_RUNNING = 1;
+    private static final int NODE_SKIPPED = 2; // cancelled without being started
+    private static final int NODE_DONE = 3;
+
+    private final TaskManagerBase mTm;
+    private final boolean mStopOnException;
+    // Nodes are added only before graph is started. After that, it's read only.
+    private final LinkedHashMap<Task, Node> mNodes = new LinkedHashMap<>();
+    private final NodeEventListener mNodeEventListener = new NodeEventListener();
+
+    /* Below are accessed only at owner context after graph is started. */
+    private boolean mLaunched = false;
+    private Object mCancelParam = null;
+    private int mFinishedCnt = 0;
+    private Task mFailedTask = null;
+
+    /* Used only when graph is run by startSync(). */
+    private boolean mDeferred = false;
+    private boolean mDoneFlag = false;
+    private final Object mDoneCond = new Object();
+
+    private static class Node {
+        final Task task;
+        final ArrayList<Node> dependents = new ArrayList<>();
+        int pendingDeps = 0;
+        int state = NODE_WAITING;
+
+        Node(@NotNull Task task) {
+            this.task = task;
+        }
+    }
+
+    private class NodeEventListener extends Task.EventListener<Task, Object> {
+        @Override
+        public void
+        onPostRun(@NotNull Task task,
+                  Object result,
+                  Exception ex) {
+            P.bug(isOwnerThread());
+            Node n = mNodes.get(task);
+            if (NODE_DONE == n.state)
+                return; // Already handled as failed. See skipNode().
+            n.state = NODE_DONE;
+            if (null == ex) {
+                for (Node d : n.dependents) {
+                    if (0 == --d.pendingDeps
+                            && NODE_WAITING == d.state)
+                        startNode(d);
+                }
+            } else {
+                if (null == mFailedTask)
+                    mFailedTask = task;
+                if (mStopOnException)
+                    TaskGraph.this.cancel(null, true);
+                else
+                    skipDependents(n);
+            }
+            handleNodeFinished();
+        }
+
+        @Override
+        public void
+        onCancelled(@NotNull Task task, Object param) {
+            P.bug(isOwnerThread());
+            Node n = mNodes.get(task);
+            if (NODE_DONE == n.state)
+                return; // Already handled as failed. See skipNode().
+            n.state = NODE_DONE;
+            skipDependents(n);
+            handleNodeFinished();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Private
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    private void
+    startNode(@NotNull Node n) {
+        n.state = NODE_RUNNING;
+        if (!startTask(n.task)) {
+            if (DBG) P.w("Fail to start task: " + n.task.getUniqueName());
+            skipNode(n);
+        }
+    }
+
+    /**
+     * Cancel node that is not started yet.
+     * Result (onCancelled) is handled by NodeEventListener as other nodes.
+     */
+    private void
+    skipNode(@NotNull Node n) {
+        n.state = NODE_SKIPPED;
+        if (n.task.cancel(null, false))
+            return;
+        /* Task is not in READY state (ex. it is already started by others).
+         * No event for this node may come. So, node is finished here as failed one.
+         */
+        if (DBG) P.w("Fail to cancel task: " + n.task.getUniqueName());
+        //noinspection unchecked
+        n.task.removeEventListener(mNodeEventListener);
+        n.state = NODE_DONE;
+        if (null == mFailedTask)
+            mFailedTask = n.task;
+        skipDependents(n);
+        handleNodeFinished();
+    }
+
+    private void
+    skipDependents(@NotNull Node n) {
+        for (Node d : n.dependents) {
+            if (NODE_WAITING == d.state) {
+                skipNode(d);
+                skipDependents(d);
+            }
+        }
+    }
+
+    private void
+    handleNodeFinished() {
+        mFinishedCnt++;
+        publishProgress(mFinishedCnt);
+        if (mFinishedCnt >= mNodes.size())
+            finish();
+    }
+
+    private void
+    finish() {
+        if (mDeferred) {
+            completeDeferred(mFailedTask, null);
+            return;
+        }
+        synchronized (mDoneCond) {
+            mDoneFlag = true;
+            mDoneCond.notifyAll();
+        }
+    }
+
+    private void
+    cancelNodes(Object param) {
+        for (Node n : mNodes.values()) {
+            if (NODE_WAITING == n.state)
+                skipNode(n);
+            else if (NODE_RUNNING == n.state)
+                // return value is ignored intentionally.
+                cancelTask(n.task, param);
+        }
+    }
+
+    /**
+     * Run at owner context.
+     */
+    private void
+    launch() {
+        P.bug(isOwnerThread());
+        mLaunched = true;
+        if (mNodes.isEmpty()) {
+            finish();
+            return;
+        }
+        for (Node n : mNodes.values()) {
+            //noinspection unchecked
+            n.task.addEventListener(getOwner(), mNodeEventListener);
+        }
+        if (isCancel()) {
+            // Cancel is requested before launching. onEarlyCancel() may not be called yet.
+            cancelNodes(mCancelParam);
+            return;
+        }
+        for (Node n : mNodes.values()) {
+            if (0 == n.pendingDeps
+                    && NODE_WAITING == n.state)
+                startNode(n);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Protected
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    @Override
+    protected void
+    onEarlyCancel(boolean started, Object param) {
+        super.onEarlyCancel(started, param);
+        P.bug(isOwnerThread());
+        mCancelParam = param;
+        // If graph is not launched yet, nodes are cancelled at launch().
+        if (mLaunched)
+            cancelNodes(param);
+    }
+
+    /**
+     * @return The first task finished with exception. null if there is no such task.
+     */
+    @Override
+    protected Task
+    doAsync() throws Exception {
+        mDeferred = deferCompletion();
+        publishProgressInit(mNodes.size());
+        publishProgress(0);
+        if (!getOwner().post(new Runnable() {
+            @Override
+            public void
+            run() {
+                launch();
+            }
+        })) { P.bug(); }
+        if (mDeferred)
+            return null;
+        // Run by startSync(). Completion can't be deferred.
+        synchronized (mDoneCond) {
+            while (!mDoneFlag)
+                mDoneCond.wait();
+        }
+        return mFailedTask;
+    }
+
+    protected boolean
+    startTask(@NotNull Task task) {
+        if (null != mTm)
+            return mTm.addTask((TmTask)task);
+        return task.start();
+    }
+
+    protected boolean
+    cancelTask(@NotNull Task task, Object param) {
+        if (null != mTm)
+            return mTm.cancelTask((TmTask)task, param);
+        return task.cancel(param, true);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Builder
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * @param tm null to start tasks directly. Otherwise, all tasks SHOULD be TmTask.
+     * @param stopOnException If true, all remaining tasks are cancelled when a task is
+     *                        finished with exception.
+     */
+    public TaskGraph(
+            @NotNull String name,
+            @NotNull HandlerAdapter owner,
+            TaskManagerBase tm,
+            boolean stopOnException) {
+        super(name, owner, ThreadEx.TASK_PRIORITY_NORM, false);
+        mTm = tm;
+        mStopOnException = stopOnException;
+    }
+
+    public static class Builder<B extends Builder>
+            extends Task.Builder<B, TaskGraph> {
+        protected TaskManagerBase mTm = null;
+        protected boolean mStopOnException = false;
+
+        public Builder() {
+            super();
+            mName = TaskGraph.class.getSimpleName();
+        }
+
+        @NotNull
+        public B
+        setTaskManager(TaskManagerBase tm) {
+            mTm = tm;
+            //noinspection unchecked
+            return (B)this;
+        }
+
+        @NotNull
+        public B
+        setStopOnException(boolean val) {
+            mStopOnException = val;
+            //noinspection unchecked
+            return (B)this;
+        }
+
+        @Override
+        @NotNull
+        public TaskGraph
+        create() {
+            return applyOptions(new TaskGraph(mName,
+                                              mOwner,
+                                              mTm,
+                                              mStopOnException));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Public interfaces
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Add task to graph. This SHOULD be called before graph is started.
+     *
+     * @param deps Tasks that {@code task} depends on. They should be added already.
+     * @return false if graph is already started, task is already added, or one of
+     *         {@code deps} is not in graph.
+     */
+    public boolean
+    addTask(@NotNull Task task, @NotNull Task... deps) {
+        P.bug(null == mTm || task instanceof TmTask);
+        synchronized (mNodes) {
+            if (!isReady()
+                    || mNodes.containsKey(task)) {
+                if (DBG) P.w("Can't add task: " + task.getUniqueName());
+                return false;
+            }
+            Node[] depNodes = new Node[deps.length];
+            for (int i = 0; i < deps.length; i++) {
+                depNodes[i] = mNodes.get(deps[i]);
+                if (null == depNodes[i]) {
+                    if (DBG) P.w("Unknown dependency: " + Util.toString(deps[i]));
+                    return false;
+                }
+            }
+            Node n = new Node(task);
+            for (Node d : depNodes) {
+                if (d.dependents.contains(n))
+                    continue; // duplicated dependency
+                d.dependents.add(n);
+                n.pendingDeps++;
+            }
+            mNodes.put(task, n);
+            return true;
+        }
+    }
+
+    public boolean
+    getStopOnException() {
+        return mStopOnException;
+    }
+
+    public TaskManagerBase
+    getTaskManager() {
+        return mTm;
+    }
+
+    @NotNull
+    public Task[]
+    getTasks() {
+        synchronized (mNodes) {
+            return mNodes.keySet().toArray(new Task[mNodes.size()]);
+        }
+    }
+}
@@ -38,20 +38,55 @@ package free.yhc.baselib.async;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import free.yhc.baselib.Logger;
 import free.yhc.baselib.adapter.HandlerAdapter;
-import free.yhc.baselib.util.Util;
 
 public class TaskGroup extends TmTask<Task> {
     private static final boolean DBG = Logger.DBG_DEFAULT;
     private static final Logger P = Logger.create(TaskGroup.class, Logger.LOGLV_DEFAULT);
 
+    /**
+     * Max progress of group in weighted progress mode. See {@link #setWeightedProgress(boolean)}.
+     */
+    public static final long WEIGHTED_PROGRESS_MAX = 10000;
+
     private final Object mTasksLock = new Object();
-    private final AtomicReference<Task[]> mTasks = new AtomicReference<>(null);
+    // Below are guarded by mTasksLock. See addTasks().
+    // Sub-tasks are dropped as soon as they are done. So, group streaming lots of sub-tasks
+    //   (See addTasks()) keeps only running and pending ones.
+    private final ArrayDeque<Task> mPending = new ArrayDeque<>(); // not started yet.
+    private final LinkedHashSet<Task> mRunning = new LinkedHashSet<>(); // started, not done yet.
+    private boolean mLaunched = false; // sub-tasks are launched at owner context.
+    private boolean mClosed = false; // no more sub-task can be added.
     private final boolean mStopOnException;
+    private volatile boolean mNonBlocking = false;
+    private volatile int mMaxParallel = 0;
+    // Below are accessed only at owner context.
+    private int mRunningCnt = 0;
+    private boolean mAllTasksDone = false;
+    private volatile ChildDoneListener mChildDoneListener = null;
+    private volatile int mQuorum = 0;
+    // Below are accessed only at owner context.
+    private int mSucceededCnt = 0;
+    private boolean mQuorumDecided = false;
+    private volatile boolean mQuorumReached = false;
+    private volatile CompletionQueue mCompletionQ = null;
+    private volatile boolean mWeightedProgress = false;
+    // Estimated, in unit of progress of sub-tasks. See getAggregateProgress().
+    private volatile long mAggProgress = 0;
+    private volatile long mAggMaxProgress = 0;
+    // true if completion is deferred in non-blocking mode. See doAsync().
+    private volatile boolean mDeferred = false;
     private boolean mTgDoneFlag = false;
     private final Object mTgDoneCond = new Object();
     private final TaskEventListener mTaskEventListener = new TaskEventListener();
@@ -75,45 +110,216 @@ public class TaskGroup extends TmTask<Task> {
 
     public interface FinalizeDoAsync {
         /**
-         * Executed on async-thread context.
+         * Executed on async-thread context in blocking mode, but on owner context in
+         *   non-blocking mode (See {@link TaskGroup#setNonBlocking(boolean)}).
+         * @param ex {@link InterruptedException} if group is cancelled, in both modes.
          */
         void finalize(@NotNull TaskGroup tg, Task result, Exception ex) throws Exception;
     }
 
+    public interface ChildDoneListener {
+        /**
+         * Called at owner context as soon as each sub-task is finished or cancelled,
+         *   in the order of completion.
+         * Sub-tasks that are never started (ex. group is cancelled), are not notified.
+         *
+         * @param result Result of sub-task. null if it is cancelled.
+         */
+        void onChildDone(@NotNull TaskGroup tg, @NotNull Task task, Object result, Exception ex);
+    }
+
+    /**
+     * Finished sub-tasks in the order of completion. See {@link #openCompletionQueue()}.
+     * Result of sub-task can be got by {@link Task#getResult()} and {@link Task#getException()}.
+     * Check {@link Task#isCancel()} to know whether it is cancelled.
+     */
+    public static class CompletionQueue {
+        // Object instead of Task to put 'sEnd'.
+        private final LinkedBlockingQueue<Object> mQ = new LinkedBlockingQueue<>();
+        private static final Object sEnd = new Object();
+        private volatile boolean mEnd = false;
+        private boolean mEndPut = false; // accessed only at owner context.
+
+        private CompletionQueue() { }
+
+        void
+        put(@NotNull Task task) {
+            // Unbounded queue. This never blocks.
+            mQ.add(task);
+        }
+
+        void
+        end() {
+            if (!mEndPut) {
+                mEndPut = true;
+                mQ.add(sEnd);
+            }
+        }
+
+        private Task
+        handle(Object o) {
+            if (sEnd == o) {
+                mEnd = true;
+                // Leave it for other consumers.
+                mQ.add(sEnd);
+                return null;
+            }
+            return (Task)o;
+        }
+
+        /**
+         * Wait until next sub-task is finished.
+         * @return null if all sub-tasks are finished and taken.
+         */
+        public Task
+        take() throws InterruptedException {
+            return handle(mQ.take());
+        }
+
+        /**
+         * @return null if timed out or {@link #isEnd()}.
+         */
+        public Task
+        poll(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+            return handle(mQ.poll(timeout, unit));
+        }
+
+        /**
+         * @return null if there is no finished sub-task now or {@link #isEnd()}.
+         */
+        public Task
+        poll() {
+            return handle(mQ.poll());
+        }
+
+        /**
+         * @return true if all sub-tasks are taken. No more sub-task will be available.
+         */
+        public boolean
+        isEnd() {
+            return mEnd;
+        }
+    }
+
+    private static class ChildProgress {
+        long max = -1; // -1 means 'unknown'
+        long prog = 0;
+    }
+
     private class TaskEventListener extends Task.EventListener<Task, Object> {
         /* All callbacks in this listener run on owner thread.
          * Therefore, we don't need to worry about synchronization!
          */
+        /* Tasks failed to start or skipped by cancel, are also regarded as 'done'.
+         */
         private final AtomicInteger _mDoneTasks = new AtomicInteger(0);
-        private final AtomicInteger _mStartedTasks = new AtomicInteger(0);
+        private final AtomicInteger _mTotalTasks = new AtomicInteger(0);
+        // Below are used only in weighted progress mode.
+        // Running sub-tasks that published progress.
+        private final HashMap<Task, ChildProgress> _mChildProgs = new HashMap<>();
+        private long _mKnownMaxSum = 0; // sum of known max progress of sub-tasks.
+        private int _mKnownCnt = 0; // number of sub-tasks whose max progress is known.
+        private long _mProgSum = 0; // sum of progress of sub-tasks whose max is known.
+        private int _mDoneUnknownCnt = 0; // done sub-tasks whose max progress is unknown.
 
         TaskEventListener() { }
 
         void
-        setStartedTasksCnt(int startedTasks) {
+        setTotalTasksCnt(int totalTasks) {
             // This function is called before running any callbacks of tasks.
             P.bug(Thread.currentThread() == TaskGroup.this.getOwner().getThread());
             P.bug(0 == _mDoneTasks.get());
-            _mStartedTasks.set(startedTasks);
+            _mTotalTasks.set(totalTasks);
+        }
+
+        /**
+         * Sub-tasks added after launched. Called with mTasksLock held.
+         */
+        void
+        addTotalTasksCnt(int cnt) {
+            _mTotalTasks.addAndGet(cnt);
+        }
+
+        int
+        getTotalTasksCnt() {
+            return _mTotalTasks.get();
         }
 
         int
         getRemainsTaskCnt() {
-            return _mStartedTasks.get() - _mDoneTasks.get();
+            return _mTotalTasks.get() - _mDoneTasks.get();
+        }
+
+        /**
+         * @param cnt Number of tasks finished without being started.
+         */
+        void
+        addNotStartedTasksCnt(int cnt) {
+            _mDoneTasks.addAndGet(cnt);
+            _mDoneUnknownCnt += cnt;
+            publishGroupProgress();
+        }
+
+        /**
+         * Progress of group is
+         *   - number of done sub-tasks by default.
+         *   - weighted sum of progress of sub-tasks, in weighted progress mode.
+         *     Max progress of sub-task not known yet, is estimated as average of known ones.
+         * Publishing too often is throttled by {@link Task#publishProgress(long)}.
+         */
+        private void
+        publishGroupProgress() {
+            // Group may be finished early. See checkQuorum().
+            if (mAllTasksDone)
+                return;
+            if (!mWeightedProgress) {
+                TaskGroup.this.publishProgress(_mDoneTasks.get());
+                return;
+            }
+            double max, prog;
+            int total = _mTotalTasks.get();
+            if (0 == _mKnownCnt) {
+                // Nothing is known. Fallback to number of done sub-tasks.
+                max = total;
+                prog = _mDoneTasks.get();
+            } else {
+                double avg = (double)_mKnownMaxSum / _mKnownCnt;
+                max = _mKnownMaxSum + (total - _mKnownCnt) * avg;
+                prog = _mProgSum + _mDoneUnknownCnt * avg;
+            }
+            mAggMaxProgress = (long)max;
+            mAggProgress = (long)prog;
+            TaskGroup.this.publishProgress(
+                    max > 0
+                    ? Math.min((long)(prog * WEIGHTED_PROGRESS_MAX / max), WEIGHTED_PROGRESS_MAX)
+                    : 0);
+        }
+
+        private void
+        handleChildProgressDone(@NotNull Task task) {
+            if (!mWeightedProgress)
+                return;
+            ChildProgress cp = _mChildProgs.remove(task);
+            if (null != cp && cp.max >= 0)
+                _mProgSum += cp.max - cp.prog;
+            else
+                _mDoneUnknownCnt++;
         }
 
         private void
         handleTaskDone(@NotNull Task task) {
             P.bug(Thread.currentThread() == TaskGroup.this.getOwner().getThread());
-            // This is last task of this task group
-            int doneCnt = _mDoneTasks.incrementAndGet();
-            TaskGroup.this.publishProgress(doneCnt);
-            if (doneCnt >= _mStartedTasks.get()) {
-                synchronized (mTgDoneCond) {
-                    mTgDoneFlag = true;
-                    mTgDoneCond.notifyAll();
-                }
+            synchronized (mTasksLock) {
+                mRunning.remove(task);
             }
+            mRunningCnt--;
+            _mDoneTasks.incrementAndGet();
+            handleChildProgressDone(task);
+            publishGroupProgress();
+            startPendingTasks();
+            // This is last task of this task group
+            if (closeIfAllTasksDone())
+                onAllTasksDone();
         }
 
         @Override
@@ -128,14 +334,54 @@ public class TaskGroup extends TmTask<Task> {
                 TaskGroup.this.cancel(null, true);
                 mResTask.set(task);
             }
+            notifyChildDone(task, result, ex);
+            checkQuorum(task, null == ex);
             handleTaskDone(task);
         }
 
         @Override
         public void
         onCancelled(@NotNull Task task, Object param) {
+            notifyChildDone(task, null, task.getException());
+            checkQuorum(task, false);
             handleTaskDone(task);
         }
+
+        @Override
+        public void
+        onProgressInit(@NotNull Task task, long maxProgress) {
+            if (!mWeightedProgress
+                    || maxProgress <= 0)
+                return; // Unknown.
+            ChildProgress cp = _mChildProgs.get(task);
+            if (null == cp) {
+                cp = new ChildProgress();
+                _mChildProgs.put(task, cp);
+            }
+            if (cp.max >= 0)
+                return; // Already known.
+            cp.max = maxProgress;
+            cp.prog = Math.min(cp.prog, maxProgress);
+            _mKnownMaxSum += maxProgress;
+            _mKnownCnt++;
+            _mProgSum += cp.prog;
+            publishGroupProgress();
+        }
+
+        @Override
+        public void
+        onProgress(@NotNull Task task, long progress) {
+            if (!mWeightedProgress)
+                return;
+            ChildProgress cp = _mChildProgs.get(task);
+            if (null == cp
+                    || cp.max < 0)
+                return; // Max progress is unknown. Progress can't be weighted.
+            long prog = Math.max(0, Math.min(progress, cp.max));
+            _mProgSum += prog - cp.prog;
+            cp.prog = prog;
+            publishGroupProgress();
+        }
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -144,31 +390,206 @@ public class TaskGroup extends TmTask<Task> {
     //
     ///////////////////////////////////////////////////////////////////////////
     private void
-    startTasks(final Task[] tasks) {
-        TaskGroup.this.publishProgressInit(tasks.length);
+    notifyChildDone(@NotNull Task task, Object result, Exception ex) {
+        if (mAllTasksDone)
+            return; // Group is already finished early. See checkQuorum().
+        ChildDoneListener l = mChildDoneListener;
+        if (null != l)
+            l.onChildDone(this, task, result, ex);
+        CompletionQueue cq = mCompletionQ;
+        if (null != cq)
+            cq.put(task);
+    }
+
+    /**
+     * Cancel all sub-tasks. Sub-tasks not started yet, will never be started.
+     * Run at owner context.
+     * @return false if sub-tasks are not launched yet.
+     */
+    private boolean
+    cancelRemainTasks(Object param) {
+        ArrayList<Task> running;
+        ArrayList<Task> pending;
+        boolean launched;
+        /* Group is already cancelled or closed here. So, no more sub-task is added after this.
+         * See addTasks().
+         */
+        synchronized (mTasksLock) {
+            running = new ArrayList<>(mRunning);
+            pending = new ArrayList<>(mPending);
+            launched = mLaunched;
+            if (launched)
+                // Sub-tasks not started are never started. They are done here.
+                mPending.clear();
+        }
+        for (Task t : running)
+            // return value is ignored intentionally.
+            cancelTask(t, param);
+        for (Task t : pending)
+            cancelTask(t, param);
+        if (!launched)
+            return false; // Tasks are not launched yet.
+        if (!pending.isEmpty())
+            mTaskEventListener.addNotStartedTasksCnt(pending.size());
+        return true;
+    }
+
+    /**
+     * Check quorum with result of sub-task, and finish group early if quorum is decided.
+     * Run at owner context.
+     */
+    private void
+    checkQuorum(@NotNull Task task, boolean succeeded) {
+        if (mQuorum <= 0 || mQuorumDecided)
+            return;
+        if (succeeded)
+            mSucceededCnt++;
+        // Sub-tasks that can still succeed. Current task is not counted as done yet.
+        int remains = mTaskEventListener.getRemainsTaskCnt() - 1;
+        if (mSucceededCnt >= mQuorum)
+            mQuorumReached = true;
+        else if (mSucceededCnt + remains >= mQuorum)
+            return; // Not decided yet.
+        mQuorumDecided = true;
+        mResTask.set(task);
+        if (DBG) P.v(getLogPrefix() + "Quorum decided. reached: " + mQuorumReached);
+        closeTasks();
+        // Group is finished now without waiting for cancelled sub-tasks.
+        cancelRemainTasks(null);
+        onAllTasksDone();
+    }
+
+    /**
+     * After this, sub-task can't be added to group anymore.
+     */
+    private void
+    closeTasks() {
+        synchronized (mTasksLock) {
+            mClosed = true;
+        }
+    }
+
+    /**
+     * Check and close group atomically against {@link #addTasks(Task[])}.
+     * Run at owner context.
+     * @return true if all sub-tasks are done and group is closed.
+     */
+    private boolean
+    closeIfAllTasksDone() {
+        synchronized (mTasksLock) {
+            if (0 != mTaskEventListener.getRemainsTaskCnt())
+                return false;
+            mClosed = true;
+            return true;
+        }
+    }
+
+    private void
+    endCompletionQueue() {
+        CompletionQueue cq = mCompletionQ;
+        if (null != cq)
+            cq.end();
+    }
+
+    /**
+     * Called at owner context when all started sub-tasks are done.
+     */
+    private void
+    onAllTasksDone() {
+        P.bug(Thread.currentThread() == TaskGroup.this.getOwner().getThread());
+        if (mAllTasksDone)
+            return;
+        mAllTasksDone = true;
+        endCompletionQueue();
+        if (!mDeferred) {
+            // doAsync() is waiting.
+            synchronized (mTgDoneCond) {
+                mTgDoneFlag = true;
+                mTgDoneCond.notifyAll();
+            }
+            return;
+        }
+        // Non-blocking mode. Finish here instead of doAsync().
+        Task resultTask = mResTask.get();
+        Exception ex = isCancel() ? new InterruptedException() : null;
+        if (null != mFinalizeDoAsync) {
+            try {
+                mFinalizeDoAsync.finalize(this, resultTask, ex);
+                ex = null;
+            } catch (Exception e) {
+                ex = e;
+            }
+        }
+        completeDeferred(resultTask, ex);
+    }
+
+    /**
+     * Start tasks not started yet, as many as allowed by max-parallel.
+     * Run at owner context.
+     */
+    private void
+    startPendingTasks() {
+        int max = mMaxParallel > 0 ? mMaxParallel : Integer.MAX_VALUE;
+        while (mRunningCnt < max
+               && !isCancel()) {
+            Task t;
+            synchronized (mTasksLock) {
+                t = mPending.poll();
+                if (null == t)
+                    return;
+                mRunning.add(t);
+            }
+            //noinspection unchecked
+            t.addEventListener(getOwner(), mTaskEventListener);
+            if (startTask(t))
+                mRunningCnt++;
+            else {
+                //noinspection unchecked
+                t.removeEventListener(mTaskEventListener);
+                synchronized (mTasksLock) {
+                    mRunning.remove(t);
+                }
+                mTaskEventListener.addNotStartedTasksCnt(1);
+            }
+        }
+    }
+
+    /**
+     * @param moreTasks Tasks from {@link PrepareDoAsync}. Appended to tasks of this group.
+     */
+    private void
+    startTasks(final Task[] moreTasks) {
+        int nrTasks;
+        synchronized (mTasksLock) {
+            nrTasks = mPending.size() + (null == moreTasks ? 0 : moreTasks.length);
+        }
+        TaskGroup.this.publishProgressInit(mWeightedProgress ? WEIGHTED_PROGRESS_MAX : nrTasks);
         TaskGroup.this.publishProgress(0);
         if (!getOwner().post(new Runnable() {
             @Override
             public void
             run() {
-                if (TaskGroup.this.isCancel())
-                    return; // already cancelled do nothing!
-                /* cancelTask(called onEarlyCancel) and this is run on owner context.
-                 * So, re-setting mTasks here is thread-safe.
-                 */
-                mTasks.set(tasks);
-                int startedCnt = 0;
-                for (Task t : tasks) {
-                    //noinspection unchecked
-                    t.addEventListener(getOwner(), mTaskEventListener);
-                    if (startTask(t))
-                        startedCnt++;
+                if (TaskGroup.this.isCancel()) {
+                    // already cancelled. No task is started.
+                    closeTasks();
+                    onAllTasksDone();
+                    return;
                 }
-                TaskGroup.this.publishProgress(tasks.length - startedCnt);
-                /* startedCnt is set before any taskDone post callback because
-                 *   they are run on same(owner) thread context.
-                 */
-                mTaskEventListener.setStartedTasksCnt(startedCnt);
+                synchronized (mTasksLock) {
+                    /* Tasks added by addTasks() until now, are already in mPending.
+                     * Nothing is started before this.
+                     */
+                    if (null != moreTasks)
+                        Collections.addAll(mPending, moreTasks);
+                    /* Total count is set before any taskDone post callback because
+                     *   they are run on same(owner) thread context.
+                     */
+                    mTaskEventListener.setTotalTasksCnt(mPending.size());
+                    mLaunched = true;
+                }
+                startPendingTasks();
+                if (closeIfAllTasksDone())
+                    onAllTasksDone();
             }
         })) { P.bug(); }
     }
@@ -183,9 +604,17 @@ public class TaskGroup extends TmTask<Task> {
     onEarlyCancel(boolean started, Object param) {
         super.onEarlyCancel(started, param);
         P.bug(Thread.currentThread() == TaskGroup.this.getOwner().getThread());
-        for (Task t : mTasks.get())
-            // return value is ignored intentionally.
-            cancelTask(t, param);
+        if (cancelRemainTasks(param)
+                && closeIfAllTasksDone())
+            onAllTasksDone();
+    }
+
+    @Override
+    protected void
+    onEarlyCancelled(Exception ex, Object param) {
+        super.onEarlyCancelled(ex, param);
+        // Group may be cancelled before sub-tasks are launched.
+        endCompletionQueue();
     }
 
     /**
@@ -204,17 +633,24 @@ public class TaskGroup extends TmTask<Task> {
             Task[] moreTasks = null;
             if (null != mPrepareDoAsync)
                 moreTasks = mPrepareDoAsync.prepare(this);
-            Task[] ts = mTasks.get();
-            if (null != moreTasks)
-                ts = Util.concatArry(ts, moreTasks);
             if (isCancel())
                 throw new InterruptedException();
-            startTasks(ts);
+            if (mNonBlocking
+                    && deferCompletion()) {
+                // Completion is handled at onAllTasksDone(). Worker thread is released now.
+                mDeferred = true;
+                startTasks(moreTasks);
+                return null;
+            }
+            startTasks(moreTasks);
             synchronized (mTgDoneCond) {
                 while (!mTgDoneFlag)
                     mTgDoneCond.wait();
-                P.bug(0 == mTaskEventListener.getRemainsTaskCnt());
+                P.bug(mQuorumDecided || 0 == mTaskEventListener.getRemainsTaskCnt());
             }
+            // Cancelled without interrupt. Same as non-blocking mode. See onAllTasksDone().
+            if (isCancel())
+                throw new InterruptedException();
         } catch (InterruptedException e) {
             ex = e;
         }
@@ -271,7 +707,7 @@ public class TaskGroup extends TmTask<Task> {
          * So, 'wait' SHOULD NOT be interrupted by default!
          */
         super(name, owner, ThreadEx.TASK_PRIORITY_NORM, false);
-        mTasks.set(tasks);
+        Collections.addAll(mPending, tasks);
         mStopOnException = stopOnException;
         mPrepareDoAsync = prepare;
         mFinalizeDoAsync = finalize;
@@ -283,6 +719,11 @@ public class TaskGroup extends TmTask<Task> {
         protected boolean mStopOnException = false;
         protected PrepareDoAsync mPrepareDoAsync = null;
         protected FinalizeDoAsync mFinalizeDoAsync = null;
+        protected boolean mNonBlocking = false;
+        protected int mMaxParallel = 0;
+        protected ChildDoneListener mChildDoneListener = null;
+        protected int mQuorum = 0;
+        protected boolean mWeightedProgress = false;
 
         public Builder() {
             super();
@@ -321,16 +762,84 @@ public class TaskGroup extends TmTask<Task> {
             return (B)this;
         }
 
+        /**
+         * See {@link TaskGroup#setNonBlocking(boolean)}.
+         */
+        @NotNull
+        public B
+        setNonBlocking(boolean val) {
+            mNonBlocking = val;
+            //noinspection unchecked
+            return (B)this;
+        }
+
+        /**
+         * See {@link TaskGroup#setMaxParallel(int)}.
+         */
+        @NotNull
+        public B
+        setMaxParallel(int val) {
+            mMaxParallel = val;
+            //noinspection unchecked
+            return (B)this;
+        }
+
+        /**
+         * See {@link TaskGroup#setChildDoneListener(ChildDoneListener)}.
+         */
+        @NotNull
+        public B
+        setChildDoneListener(ChildDoneListener listener) {
+            mChildDoneListener = listener;
+            //noinspection unchecked
+            return (B)this;
+        }
+
+        /**
+         * See {@link TaskGroup#setQuorum(int)}.
+         */
+        @NotNull
+        public B
+        setQuorum(int val) {
+            mQuorum = val;
+            //noinspection unchecked
+            return (B)this;
+        }
+
+        /**
+         * See {@link TaskGroup#setWeightedProgress(boolean)}.
+         */
+        @NotNull
+        public B
+        setWeightedProgress(boolean val) {
+            mWeightedProgress = val;
+            //noinspection unchecked
+            return (B)this;
+        }
+
+        @Override
+        @NotNull
+        protected <X extends TaskGroup> X
+        applyOptions(@NotNull X t) {
+            super.applyOptions(t);
+            t.setNonBlocking(mNonBlocking);
+            t.setMaxParallel(mMaxParallel);
+            t.setChildDoneListener(mChildDoneListener);
+            t.setQuorum(mQuorum);
+            t.setWeightedProgress(mWeightedProgress);
+            return t;
+        }
+
         @Override
         @NotNull
         public TaskGroup
         create() {
-            return new TaskGroup(mName,
-                                 mOwner,
-                                 mTasks,
-                                 mStopOnException,
-                                 mPrepareDoAsync,
-                                 mFinalizeDoAsync);
+            return applyOptions(new TaskGroup(mName,
+                                              mOwner,
+                                              mTasks,
+                                              mStopOnException,
+                                              mPrepareDoAsync,
+                                              mFinalizeDoAsync));
         }
     }
     ///////////////////////////////////////////////////////////////////////////
@@ -343,8 +852,227 @@ public class TaskGroup extends TmTask<Task> {
         return mStopOnException;
     }
 
+    /**
+     * In non-blocking mode, no thread waits for sub-tasks.
+     * Worker thread is released as soon as sub-tasks are started, and group is finished by
+     *   callbacks of sub-tasks at owner context.
+     * So, {@link FinalizeDoAsync} is run at owner context in this mode.
+     * This mode is ignored if group is run by {@link #startSync()}.
+     *
+     * This can be changed only before task is started.
+     * @return 'false' if task is already started.
+     */
+    public final boolean
+    setNonBlocking(boolean val) {
+        if (!isReady())
+            return false;
+        mNonBlocking = val;
+        return true;
+    }
+
+    public final boolean
+    isNonBlocking() {
+        return mNonBlocking;
+    }
+
+    /**
+     * Limit number of sub-tasks running at the same time.
+     * Next sub-task is started whenever running one is finished, in the order of tasks.
+     * This is applied regardless of TaskManagerBase used to run sub-tasks.
+     *
+     * This can be changed only before task is started.
+     * @param val 0 or minus value means 'unlimited' (default).
+     * @return 'false' if task is already started.
+     */
+    public final boolean
+    setMaxParallel(int val) {
+        if (!isReady())
+            return false;
+        mMaxParallel = val;
+        return true;
+    }
+
+    public final int
+    getMaxParallel() {
+        return mMaxParallel;
+    }
+
+    /**
+     * Listener to get result of each sub-task as soon as it is finished.
+     * So, results can be processed while other sub-tasks are running.
+     *
+     * This can be changed only before task is started.
+     * @return 'false' if task is already started.
+     */
+    public final boolean
+    setChildDoneListener(ChildDoneListener listener) {
+        if (!isReady())
+            return false;
+        mChildDoneListener = listener;
+        return true;
+    }
+
+    /**
+     * Finish group as soon as {@code val} sub-tasks are finished successfully (quorum), and
+     *   cancel remaining sub-tasks by {@link #cancelTask(Task, Object)}.
+     * Group is also finished early when quorum becomes unreachable.
+     * {@code val} == 1 means 'any-of'. That is, the first success wins.
+     * In this mode, result of group is the task that decided quorum (reached or unreachable).
+     * See {@link #isQuorumReached()}.
+     * Cancelled sub-tasks are not waited. They are finished after group is finished.
+     *
+     * This can be changed only before task is started.
+     * @param val 0 or minus value means 'wait all sub-tasks' (default).
+     * @return 'false' if task is already started.
+     */
+    public final boolean
+    setQuorum(int val) {
+        if (!isReady())
+            return false;
+        mQuorum = val;
+        return true;
+    }
+
+    public final int
+    getQuorum() {
+        return mQuorum;
+    }
+
+    /**
+     * @return true if quorum is reached. Valid after group is finished.
+     */
+    public final boolean
+    isQuorumReached() {
+        return mQuorumReached;
+    }
+
+    /**
+     * In weighted progress mode, progress of group is sum of progress of sub-tasks (ex. bytes
+     *   read by NetReadTask) instead of number of done sub-tasks.
+     * Max progress of group is {@link #WEIGHTED_PROGRESS_MAX}, and progress is updated
+     *   whenever sub-task publishes progress (throttled as {@link Task#publishProgress(long)}).
+     * Max progress of sub-task that is not known yet (ex. not started yet), is estimated as
+     *   average of known ones.
+     * See {@link #getAggregateProgress()} for progress in unit of sub-tasks.
+     *
+     * This can be changed only before task is started.
+     * @return 'false' if task is already started.
+     */
+    public final boolean
+    setWeightedProgress(boolean val) {
+        if (!isReady())
+            return false;
+        mWeightedProgress = val;
+        return true;
+    }
+
+    public final boolean
+    isWeightedProgress() {
+        return mWeightedProgress;
+    }
+
+    /**
+     * Valid only in weighted progress mode.
+     * @return Sum of progress of sub-tasks. Sub-tasks done without known max progress are
+     *         counted as estimated max.
+     */
+    public final long
+    getAggregateProgress() {
+        return mAggProgress;
+    }
+
+    /**
+     * Valid only in weighted progress mode.
+     * @return Estimated sum of max progress of sub-tasks.
+     *         This may be changed as max progress of sub-tasks are known.
+     */
+    public final long
+    getAggregateMaxProgress() {
+        return mAggMaxProgress;
+    }
+
+    /**
+     * Open queue that receives sub-tasks in the order of completion.
+     * This is for consumers running on other threads than owner.
+     * Queue is ended after all sub-tasks are finished.
+     *
+     * This SHOULD be called before task is started.
+     * @return null if task is already started.
+     */
+    public final CompletionQueue
+    openCompletionQueue() {
+        if (!isReady())
+            return null;
+        CompletionQueue cq = mCompletionQ;
+        if (null == cq) {
+            cq = new CompletionQueue();
+            mCompletionQ = cq;
+        }
+        return cq;
+    }
+
+    /**
+     * Append sub-tasks to this group. This can be called at any context, even while group is
+     *   running (ex. at {@link ChildDoneListener} to add tasks found by finished sub-task).
+     * Added sub-tasks are run after sub-tasks already in the group (under max-parallel limit),
+     *   and group is finished only after added sub-tasks are also done.
+     * Note that max value of progress is not changed by sub-tasks added after group is started,
+     *   except for weighted progress mode. See {@link #setWeightedProgress(boolean)}.
+     *
+     * @return 'false' if group is cancelled or all sub-tasks are already done (tasks are not
+     *         added). 'true' is returned even if {@code tasks} is empty.
+     */
+    public boolean
+    addTasks(@NotNull Task[] tasks) {
+        boolean launched;
+        synchronized (mTasksLock) {
+            if (mClosed || isCancel() || isTerminated())
+                return false;
+            if (0 == tasks.length)
+                return true;
+            Collections.addAll(mPending, tasks);
+            launched = mLaunched;
+            if (launched)
+                /* Counted here, not at owner context. So, group is never finished before
+                 *   added sub-tasks are done. See closeIfAllTasksDone().
+                 */
+                mTaskEventListener.addTotalTasksCnt(tasks.length);
+        }
+        // Tasks added before launched, are started at startTasks().
+        if (launched
+                && !getOwner().post(new Runnable() {
+                    @Override
+                    public void
+                    run() {
+                        startPendingTasks();
+                    }
+                })) { P.bug(); }
+        return true;
+    }
+
+    /**
+     * See {@link #addTasks(Task[])}.
+     */
+    public final boolean
+    addTask(@NotNull Task task) {
+        return addTasks(new Task[] { task });
+    }
+
+    /**
+     * @return Sub-tasks of this group that are not done yet - running ones in started order,
+     *         and then ones waiting to be started. Sub-tasks are not kept by group after they
+     *         are done. Snapshot. Sub-tasks may be added by {@link #addTasks(Task[])} after this.
+     */
     public Task[]
     getTasks() {
-        return mTasks.get();
+        synchronized (mTasksLock) {
+            Task[] tasks = new Task[mRunning.size() + mPending.size()];
+            int i = 0;
+            for (Task t : mRunning)
+                tasks[i++] = t;
+            for (Task t : mPending)
+                tasks[i++] = t;
+            return tasks;
+        }
     }
 }
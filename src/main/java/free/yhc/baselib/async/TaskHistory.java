@@ -0,0 +1,268 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Fixed-size history of finished tasks.
+ *
+ * Only compact record - task id, task type, timings, result summary and exception class - is
+ *   kept for each finished task. Task instance itself is NOT referenced by history.
+ *   If task instance is used as task id (ex. {@link TaskManager#addTask(TmTask)}),
+ *   {@link ThreadEx#getId()} of the task is recorded as task id instead.
+ * All slots are pre-allocated as parallel arrays. So, recording doesn't allocate anything,
+ *   and oldest record is overwritten once history is full.
+ * Memory usage is about 50 ~ 70 bytes per entry (excluding task id and type objects).
+ *   So, one million entries takes several tens of MB.
+ *
+ * All operations are thread-safe.
+ */
+public class TaskHistory {
+    public static final int OUTCOME_OK = 0;
+    public static final int OUTCOME_EXCEPTION = 1;
+
+    private final Summarizer mSummarizer;
+    private final Object[] mTid;
+    private final Object[] mType;
+    private final long[] mAddedTm;
+    private final long[] mStartedTm;
+    private final long[] mDoneTm;
+    private final long[] mSummary;
+    private final Class[] mExClass;
+    // Index of slot where next record is written.
+    private int mHead = 0;
+    private int mSize = 0;
+    // Total number of records ever recorded.
+    private long mTotal = 0;
+
+    public interface Summarizer {
+        /**
+         * Called at owner context of TaskManager. So, this should be fast.
+         * @return Summary of result. Meaning of value is up to user.
+         */
+        long summarize(@NotNull TmTask task, Object result);
+    }
+
+    public interface Visitor {
+        /**
+         * @return false to stop visiting.
+         */
+        boolean visit(@NotNull Record rec);
+    }
+
+    public static class Record {
+        public final Object tid;
+        public final Object ttype;
+        public final long addedTime;
+        // 0 if task is finished before it is started.
+        public final long startedTime;
+        public final long doneTime;
+        public final long summary;
+        // null if task finished without exception.
+        public final Class exClass;
+
+        Record(Object tid, Object ttype,
+               long addedTime, long startedTime, long doneTime,
+               long summary, Class exClass) {
+            this.tid = tid;
+            this.ttype = ttype;
+            this.addedTime = addedTime;
+            this.startedTime = startedTime;
+            this.doneTime = doneTime;
+            this.summary = summary;
+            this.exClass = exClass;
+        }
+
+        public int
+        getOutcome() {
+            return null == exClass ? OUTCOME_OK : OUTCOME_EXCEPTION;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Private
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * @param i 0 for the oldest record.
+     */
+    private int
+    slotLocked(int i) {
+        int s = mHead - mSize + i;
+        return s < 0 ? s + mTid.length : s;
+    }
+
+    @NotNull
+    private Record
+    recordLocked(int i) {
+        int s = slotLocked(i);
+        return new Record(mTid[s], mType[s],
+                          mAddedTm[s], mStartedTm[s], mDoneTm[s],
+                          mSummary[s], mExClass[s]);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Package private
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    void
+    record(@NotNull TmTask task,
+           @NotNull Object tid,
+           @NotNull Object ttype,
+           long addedTime,
+           long startedTime,
+           Object result,
+           Exception ex) {
+        long summary = null == mSummarizer ? 0 : mSummarizer.summarize(task, result);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            int s = mHead;
+            // Task used as it's own id would be kept alive by history.
+            mTid[s] = tid == task ? (Object)task.getId() : tid;
+            mType[s] = ttype;
+            mAddedTm[s] = addedTime;
+            mStartedTm[s] = startedTime;
+            mDoneTm[s] = now;
+            mSummary[s] = summary;
+            mExClass[s] = null == ex ? null : ex.getClass();
+            mHead = (s + 1 == mTid.length) ? 0 : s + 1;
+            if (mSize < mTid.length)
+                mSize++;
+            mTotal++;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Public interfaces
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    public TaskHistory(int capacity, Summarizer summarizer) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity: " + capacity);
+        mSummarizer = summarizer;
+        mTid = new Object[capacity];
+        mType = new Object[capacity];
+        mAddedTm = new long[capacity];
+        mStartedTm = new long[capacity];
+        mDoneTm = new long[capacity];
+        mSummary = new long[capacity];
+        mExClass = new Class[capacity];
+    }
+
+    public TaskHistory(int capacity) {
+        this(capacity, null);
+    }
+
+    public int
+    capacity() {
+        return mTid.length;
+    }
+
+    public synchronized int
+    size() {
+        return mSize;
+    }
+
+    /**
+     * @return Total number of records ever recorded, including overwritten ones.
+     */
+    public synchronized long
+    total() {
+        return mTotal;
+    }
+
+    /**
+     * @param i 0 for the oldest record, {@code size() - 1} for the latest one.
+     */
+    @NotNull
+    public synchronized Record
+    get(int i) {
+        if (i < 0 || i >= mSize)
+            throw new IndexOutOfBoundsException("index: " + i + ", size: " + mSize);
+        return recordLocked(i);
+    }
+
+    /**
+     * @return Latest record of task id {@code tid}. null if there is no such record.
+     */
+    public synchronized Record
+    findLatest(@NotNull Object tid) {
+        for (int i = mSize - 1; i >= 0; i--) {
+            if (tid.equals(mTid[slotLocked(i)]))
+                return recordLocked(i);
+        }
+        return null;
+    }
+
+    /**
+     * Visit records from the oldest one.
+     * Visiting is done with lock held. So, {@code visitor} should be fast.
+     */
+    public synchronized void
+    visit(@NotNull Visitor visitor) {
+        for (int i = 0; i < mSize; i++) {
+            if (!visitor.visit(recordLocked(i)))
+                return;
+        }
+    }
+
+    /**
+     * @return Records from the oldest one.
+     */
+    @NotNull
+    public synchronized Record[]
+    snapshot() {
+        Record[] recs = new Record[mSize];
+        for (int i = 0; i < mSize; i++)
+            recs[i] = recordLocked(i);
+        return recs;
+    }
+
+    public synchronized void
+    clear() {
+        for (int i = 0; i < mTid.length; i++) {
+            mTid[i] = null;
+            mType[i] = null;
+            mExClass[i] = null;
+        }
+        mHead = mSize = 0;
+    }
+}
@@ -0,0 +1,589 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+import free.yhc.baselib.Logger;
+
+/**
+ * Append-only write-ahead journal of tasks in {@link TaskManager}.
+ *
+ * 'add', 'start', 'done' and 'cancel' of a task are appended to journal file.
+ * Task itself can't be stored. So, task is stored as descriptor - byte array - made by
+ *   {@link Codec}, and re-created from it at recovery.
+ *
+ * - Records are buffered, and flushed and synced to storage at every sync-interval by
+ *   background thread. So, records appended within last sync-interval may be lost by crash.
+ * - Each record has checksum. Broken record at the end of file (ex. by crash while writing) is
+ *   discarded at opening.
+ * - When file has too many finished records, it is rewritten with unfinished ones only.
+ *   This is done by the background thread. Appending records is blocked only while records
+ *   appended during rewriting are copied to new file.
+ *
+ * Usage:
+ *   Open journal, set it to TaskManager, and then call {@link TaskManager#recoverJournal()}.
+ */
+public class TaskJournal {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(TaskJournal.class, Logger.LOGLV_DEFAULT);
+
+    public static final long DEFAULT_SYNC_INTERVAL = 200; // ms
+    public static final int DEFAULT_COMPACT_THRESHOLD = 4096; // records
+
+    private static final int MAGIC = 0x544a4e4c; // 'TJNL'
+    private static final int MAX_DESC_SIZE = 16 * 1024 * 1024;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_START = 2;
+    private static final byte OP_DONE = 3;
+    private static final byte OP_CANCEL = 4;
+
+    private final File mFile;
+    private final Codec mCodec;
+    private final long mSyncInterval;
+    private final int mCompactThreshold;
+
+    // Unfinished entries. Guarded by 'this'.
+    private final LinkedHashMap<Long, Entry> mLive = new LinkedHashMap<>();
+    // Entries read from file at opening. They are waiting to be recovered.
+    private Entry[] mRecovering;
+    private long mNextId = 1;
+    // Number of records in current journal file.
+    private int mRecords = 0;
+    private FileOutputStream mFos;
+    private DataOutputStream mOut;
+    private boolean mDirty = false;
+    private boolean mClosed = false;
+    // Compaction is requested to syncer thread.
+    private boolean mCompactPending = false;
+    private final Thread mSyncer;
+    // Only one compaction runs at a time. Taken before 'this'.
+    private final Object mCompactLock = new Object();
+
+    public interface Codec {
+        /**
+         * Called at the context calling {@link TaskManager#addTask(TmTask, Object, Object, Object)}.
+         *
+         * @return Descriptor of task. null if task should not be journaled.
+         */
+        byte[] encode(@NotNull TaskManager tm, @NotNull TmTask task, @NotNull TaskManager.TaskInfo ti);
+
+        /**
+         * Re-create task from descriptor and add it to {@code tm}.
+         *
+         * @param started true if task was started before.
+         *                That is, task may be done partially.
+         * @return false if task is not recovered. Descriptor is dropped anyway.
+         */
+        boolean restore(@NotNull TaskManager tm, @NotNull byte[] desc, boolean started);
+    }
+
+    public static class Entry {
+        public final long id;
+        public final byte[] desc;
+        boolean started = false;
+
+        Entry(long id, @NotNull byte[] desc) {
+            this.id = id;
+            this.desc = desc;
+        }
+
+        public boolean
+        isStarted() {
+            return started;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Private
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    private static void
+    writeRecord(@NotNull DataOutputStream out, byte op, long id, byte[] desc)
+            throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(1 + 8 + (null == desc ? 0 : desc.length));
+        bb.put(op);
+        bb.putLong(id);
+        if (null != desc)
+            bb.put(desc);
+        byte[] payload = bb.array();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int)crc.getValue());
+        out.write(payload);
+    }
+
+    /**
+     * Read records from journal file to {@code mLive}.
+     * @return Offset of the end of the last valid record.
+     */
+    private long
+    readFile() throws IOException {
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (MAGIC != in.readInt())
+                throw new IOException("Not a task journal: " + mFile.getPath());
+            offset = 4;
+            CRC32 crc = new CRC32();
+            while (true) {
+                int len = in.readInt();
+                int sum = in.readInt();
+                if (len < 9 || len > 9 + MAX_DESC_SIZE)
+                    break;
+                byte[] payload = new byte[len];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (sum != (int)crc.getValue())
+                    break;
+                ByteBuffer bb = ByteBuffer.wrap(payload);
+                byte op = bb.get();
+                long id = bb.getLong();
+                switch (op) {
+                case OP_ADD:
+                    byte[] desc = new byte[bb.remaining()];
+                    bb.get(desc);
+                    mLive.put(id, new Entry(id, desc));
+                    break;
+                case OP_START:
+                    Entry e = mLive.get(id);
+                    if (null != e)
+                        e.started = true;
+                    break;
+                case OP_DONE:
+                case OP_CANCEL:
+                    mLive.remove(id);
+                    break;
+                default:
+                    P.w("Unknown journal record: " + op);
+                }
+                if (id >= mNextId)
+                    mNextId = id + 1;
+                mRecords++;
+                offset += 8 + len;
+            }
+        } catch (EOFException ignored) {
+            // Normal end of file, or the last record is incomplete.
+        }
+        return offset;
+    }
+
+    private void
+    openForAppend() throws IOException {
+        mFos = new FileOutputStream(mFile, true);
+        mOut = new DataOutputStream(new BufferedOutputStream(mFos));
+    }
+
+    private void
+    appendLocked(byte op, long id, byte[] desc) {
+        if (mClosed)
+            return;
+        try {
+            writeRecord(mOut, op, id, desc);
+            mRecords++;
+            mDirty = true;
+        } catch (IOException e) {
+            P.e("Fail to write journal: " + e.getMessage());
+        }
+    }
+
+    private int
+    liveRecordsLocked() {
+        int n = mLive.size();
+        for (Entry e : mLive.values()) {
+            if (e.started)
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Sync directory entry of renamed file.
+     * This is best-effort. Opening directory is not supported on some platforms (ex. Windows),
+     *   and java.nio.file is not available at old Android.
+     */
+    private static void
+    syncDir(File dir) {
+        if (null == dir)
+            return;
+        try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException | UnsupportedOperationException | LinkageError e) {
+            if (DBG) P.w("Fail to sync directory: " + e.getMessage());
+        }
+    }
+
+    private boolean
+    needCompactionLocked() {
+        return !mClosed
+               && mRecords >= mCompactThreshold
+               && mRecords >= 2 * liveRecordsLocked();
+    }
+
+    /**
+     * Rewrite journal file with unfinished entries only.
+     * Snapshot of unfinished entries is written to temporary file without lock. Then, under lock,
+     *   changes after the snapshot are appended to it, and it is synced and renamed to journal
+     *   file.
+     */
+    private void
+    compactFile() throws IOException {
+        synchronized (mCompactLock) {
+            ArrayList<Entry> snap;
+            LinkedHashMap<Long, Boolean> snapStarted = new LinkedHashMap<>();
+            synchronized (this) {
+                if (mClosed)
+                    return;
+                snap = new ArrayList<>(mLive.values());
+                for (Entry e : snap)
+                    snapStarted.put(e.id, e.started);
+            }
+            File tmp = new File(mFile.getPath() + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            boolean renamed = false;
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                out.writeInt(MAGIC);
+                int records = 0;
+                for (Entry e : snap) {
+                    writeRecord(out, OP_ADD, e.id, e.desc);
+                    records++;
+                    if (snapStarted.get(e.id)) {
+                        writeRecord(out, OP_START, e.id, null);
+                        records++;
+                    }
+                }
+                out.flush();
+                synchronized (this) {
+                    if (mClosed)
+                        return;
+                    // Changes while snapshot is written.
+                    for (Long id : snapStarted.keySet()) {
+                        if (!mLive.containsKey(id)) {
+                            writeRecord(out, OP_DONE, id, null);
+                            records++;
+                        }
+                    }
+                    for (Entry e : mLive.values()) {
+                        Boolean started = snapStarted.get(e.id);
+                        if (null == started) {
+                            writeRecord(out, OP_ADD, e.id, e.desc);
+                            records++;
+                        }
+                        if (e.started && !Boolean.TRUE.equals(started)) {
+                            writeRecord(out, OP_START, e.id, null);
+                            records++;
+                        }
+                    }
+                    out.flush();
+                    fos.getChannel().force(false);
+                    fos.close();
+                    mOut.close();
+                    renamed = tmp.renameTo(mFile);
+                    openForAppend();
+                    if (!renamed)
+                        throw new IOException("Fail to rename " + tmp.getPath());
+                    mRecords = records;
+                    mDirty = false;
+                    if (DBG) P.v("Journal compacted: " + records + " records");
+                }
+            } finally {
+                fos.close();
+                if (!renamed && !tmp.delete())
+                    P.w("Fail to delete " + tmp.getPath());
+            }
+            syncDir(mFile.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    private void
+    runSyncer() {
+        while (true) {
+            FileOutputStream fos = null;
+            boolean compact;
+            synchronized (this) {
+                if (!mCompactPending) {
+                    try {
+                        wait(mSyncInterval);
+                    } catch (InterruptedException ignored) { }
+                }
+                if (mClosed)
+                    return;
+                compact = mCompactPending;
+                mCompactPending = false;
+                if (mDirty) {
+                    try {
+                        mOut.flush();
+                        mDirty = false;
+                        fos = mFos;
+                    } catch (IOException e) {
+                        P.e("Fail to flush journal: " + e.getMessage());
+                    }
+                }
+            }
+            // Syncing is done without lock not to block appending.
+            if (null != fos) {
+                try {
+                    fos.getChannel().force(false);
+                } catch (IOException e) {
+                    // Stream may be closed by compaction. Then, it's already synced.
+                    synchronized (this) {
+                        if (fos == mFos)
+                            P.e("Fail to sync journal: " + e.getMessage());
+                    }
+                }
+            }
+            if (compact) {
+                try {
+                    compactFile();
+                } catch (IOException e) {
+                    P.e("Fail to compact journal: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Package private
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    @NotNull
+    Codec
+    getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * @return Entries to recover. Entries are handed over only once.
+     */
+    @NotNull
+    synchronized Entry[]
+    takeRecoveringEntries() {
+        Entry[] es = mRecovering;
+        mRecovering = new Entry[0];
+        return es;
+    }
+
+    /**
+     * @return Journal id. -1 if task is not journaled.
+     */
+    long
+    add(@NotNull TaskManager tm, @NotNull TmTask task, @NotNull TaskManager.TaskInfo ti) {
+        byte[] desc = mCodec.encode(tm, task, ti);
+        if (null == desc)
+            return -1;
+        P.bug(desc.length <= MAX_DESC_SIZE);
+        synchronized (this) {
+            long id = mNextId++;
+            mLive.put(id, new Entry(id, desc));
+            appendLocked(OP_ADD, id, desc);
+            return id;
+        }
+    }
+
+    synchronized void
+    started(long id) {
+        Entry e = mLive.get(id);
+        if (null == e)
+            return;
+        e.started = true;
+        appendLocked(OP_START, id, null);
+    }
+
+    /**
+     * @param cancelled true if task is cancelled or dropped. Otherwise false.
+     */
+    synchronized void
+    finished(long id, boolean cancelled) {
+        if (null == mLive.remove(id))
+            return;
+        appendLocked(cancelled ? OP_CANCEL : OP_DONE, id, null);
+        // Compaction takes time. It is done by syncer thread, not to block caller (owner).
+        if (!mCompactPending && needCompactionLocked()) {
+            mCompactPending = true;
+            notifyAll();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Builder
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    protected TaskJournal(@NotNull File file,
+                          @NotNull Codec codec,
+                          long syncInterval,
+                          int compactThreshold)
+            throws IOException {
+        mFile = file;
+        mCodec = codec;
+        mSyncInterval = syncInterval;
+        mCompactThreshold = compactThreshold;
+        long offset = mFile.exists() ? readFile() : 0;
+        if (offset > 0) {
+            if (offset < mFile.length()) {
+                P.w("Broken journal records are discarded: " + (mFile.length() - offset) + " bytes");
+                try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                    raf.setLength(offset);
+                }
+            }
+        } else {
+            // New or empty file.
+            try (FileOutputStream fos = new FileOutputStream(mFile)) {
+                DataOutputStream out = new DataOutputStream(fos);
+                out.writeInt(MAGIC);
+                out.flush();
+                fos.getChannel().force(false);
+            }
+        }
+        mRecovering = mLive.values().toArray(new Entry[mLive.size()]);
+        openForAppend();
+        mSyncer = new Thread(new Runnable() {
+            @Override
+            public void
+            run() {
+                runSyncer();
+            }
+        }, "TaskJournal-sync");
+        mSyncer.setDaemon(true);
+        mSyncer.start();
+    }
+
+    /**
+     * Open journal. File is created if it doesn't exist.
+     * Unfinished tasks in existing file are recovered by {@link TaskManager#recoverJournal()}.
+     *
+     * @param syncInterval Interval(ms) of flushing and syncing buffered records to storage.
+     * @param compactThreshold Journal file is compacted if it has more records than this,
+     *                         and more than half of them are about finished tasks.
+     */
+    @NotNull
+    public static TaskJournal
+    open(@NotNull File file,
+         @NotNull Codec codec,
+         long syncInterval,
+         int compactThreshold)
+            throws IOException {
+        if (syncInterval <= 0 || compactThreshold <= 0)
+            throw new IllegalArgumentException();
+        return new TaskJournal(file, codec, syncInterval, compactThreshold);
+    }
+
+    @NotNull
+    public static TaskJournal
+    open(@NotNull File file,
+         @NotNull Codec codec)
+            throws IOException {
+        return open(file, codec, DEFAULT_SYNC_INTERVAL, DEFAULT_COMPACT_THRESHOLD);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Public interfaces
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * @return Number of unfinished tasks in journal.
+     */
+    public synchronized int
+    size() {
+        return mLive.size();
+    }
+
+    /**
+     * Flush and sync buffered records to storage immediately.
+     */
+    public synchronized void
+    sync() throws IOException {
+        if (mClosed)
+            return;
+        mOut.flush();
+        mFos.getChannel().force(false);
+        mDirty = false;
+    }
+
+    /**
+     * Compact journal file now regardless of threshold.
+     */
+    public void
+    compact() throws IOException {
+        compactFile();
+    }
+
+    /**
+     * Sync and close journal. Records appended after closing are ignored.
+     */
+    public void
+    close() throws IOException {
+        synchronized (this) {
+            if (mClosed)
+                return;
+            try {
+                sync();
+            } finally {
+                mClosed = true;
+                mOut.close();
+                notifyAll();
+            }
+        }
+        try {
+            mSyncer.join();
+        } catch (InterruptedException ignored) { }
+    }
+}
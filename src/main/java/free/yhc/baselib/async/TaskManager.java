@@ -38,10 +38,13 @@ package free.yhc.baselib.async;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import free.yhc.baselib.Logger;
@@ -61,6 +64,7 @@ public class TaskManager extends TaskManagerBase {
     private static final Object sUnspecifiedTaskType = new Object();
     private static final AtomicLong sTmpId = new AtomicLong(0);
 
+    // Lock for mWatchedTaskSet.
     private final Object mTmLock = new Object();
     /* After task is done, task info. are not managed anymore.
      * But, filtered tasked by this functions are preserved
@@ -73,15 +77,35 @@ public class TaskManager extends TaskManagerBase {
      * And removed oldest one first when it reaches to maximum size allowed.
      */
     private final LinkedHashSet<TmTask> mWatchedTaskSet = new LinkedHashSet<>();
-    // Map having all - ready/running/watching - tasks handled by this manager
-    private final LinkedHashMap<Object, TmTask> mTaskMap = new LinkedHashMap<>();
+    /* Map having all - ready/running/watching - tasks handled by this manager.
+     * Reading doesn't need any lock. And entry is changed only by atomic operations of
+     *   ConcurrentHashMap (putIfAbsent, replace, remove with value).
+     * So, tasks having different tid never contend.
+     */
+    private final ConcurrentHashMap<Object, TmTask> mTaskMap = new ConcurrentHashMap<>();
+    /* Secondary index of mTaskMap : task type -> tasks.
+     * Updated right after mTaskMap is changed. So, it may be different from mTaskMap for a moment.
+     * Set for a type is never removed even if it becomes empty. Number of types is small in general.
+     */
+    private final ConcurrentHashMap<Object, Set<TmTask>> mTypeIndex = new ConcurrentHashMap<>();
 
     private final int mMaxWatchedTask; // maximum number of recorded task.
     private final TaskWatchFilter mWatchFilter;
+    // History mode. If it is set, finished tasks are recorded here instead of being watched.
+    private volatile TaskHistory mHistory = null;
+    private volatile TaskJournal mJournal = null;
 
     private final TaskEventHandler mTaskEventHandler = new TaskEventHandler();
 
     private class TaskEventHandler extends TaskBase.EventListener<TmTask, Object> {
+        @Override
+        public void
+        onStarted(@NotNull TmTask task) {
+            TaskInfo ti = getTaskInfo(task);
+            ti.mStartedTime = System.currentTimeMillis();
+            journalStarted(ti);
+        }
+
         @Override
         public void
         onCancelled(@NotNull TmTask task,
@@ -91,6 +115,7 @@ public class TaskManager extends TaskManagerBase {
             if (DBG) P.v("onCancelled : " + task.getUniqueName()
                          + ", Param: " + Util.toString(param));
             P.bug(isOwnerThread());
+            journalFinished(getTaskInfo(task), true);
         }
 
         @Override
@@ -121,6 +146,10 @@ public class TaskManager extends TaskManagerBase {
         public final Object ttype;
         public final TmTask task;
         public final Object ttag;
+        public final long addedTime;
+        private volatile long mStartedTime = 0;
+        // Id in TaskJournal. -1 if task is not journaled.
+        private volatile long mJournalId = -1;
 
         public TaskInfo(@NotNull TmTask task,
                         @NotNull Object tid,
@@ -130,6 +159,15 @@ public class TaskManager extends TaskManagerBase {
             this.tid = tid;
             this.ttype = ttype;
             this.ttag = ttag;
+            this.addedTime = System.currentTimeMillis();
+        }
+
+        /**
+         * @return 0 if task is not started yet.
+         */
+        public long
+        getStartedTime() {
+            return mStartedTime;
         }
     }
 
@@ -138,6 +176,66 @@ public class TaskManager extends TaskManagerBase {
     // Private
     //
     ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Set is created if it doesn't exist. So, this SHOULD be used only when task is added.
+     */
+    @NotNull
+    private Set<TmTask>
+    typeSet(@NotNull Object typ) {
+        Set<TmTask> set = mTypeIndex.get(typ);
+        if (null == set) {
+            set = Collections.newSetFromMap(new ConcurrentHashMap<TmTask, Boolean>());
+            Set<TmTask> old = mTypeIndex.putIfAbsent(typ, set);
+            if (null != old)
+                set = old;
+        }
+        return set;
+    }
+
+    private void
+    indexTask(@NotNull TmTask task) {
+        typeSet(getTaskInfo(task).ttype).add(task);
+    }
+
+    private void
+    unindexTask(@NotNull TmTask task) {
+        Set<TmTask> set = mTypeIndex.get(getTaskInfo(task).ttype);
+        if (null != set)
+            set.remove(task);
+    }
+
+    /**
+     * Remove task from registry if it is still registered.
+     */
+    private boolean
+    unregisterTask(@NotNull TmTask task) {
+        if (!mTaskMap.remove(getTaskInfo(task).tid, task))
+            return false;
+        unindexTask(task);
+        return true;
+    }
+
+    private void
+    journalAdded(@NotNull TmTask task, @NotNull TaskInfo ti) {
+        TaskJournal journal = mJournal;
+        if (null != journal)
+            ti.mJournalId = journal.add(this, task, ti);
+    }
+
+    private void
+    journalStarted(@NotNull TaskInfo ti) {
+        TaskJournal journal = mJournal;
+        if (null != journal && ti.mJournalId >= 0)
+            journal.started(ti.mJournalId);
+    }
+
+    private void
+    journalFinished(@NotNull TaskInfo ti, boolean cancelled) {
+        TaskJournal journal = mJournal;
+        if (null != journal && ti.mJournalId >= 0)
+            journal.finished(ti.mJournalId, cancelled);
+    }
+
     /**
      * Once number of watched task reaches to this value, it will be shrinked to mMaxWatchedTask.
      */
@@ -153,12 +251,14 @@ public class TaskManager extends TaskManagerBase {
             return; // nothing to do
 
         /* Removing old items until map-size reaches to max allowed.
-         * Note that removing from keySet measn removing from hashMap.
+         * Removed tasks are not managed by this manager anymore.
          */
         Iterator<TmTask> it = mWatchedTaskSet.iterator();
         while (shrinksz-- > 0) {
-            it.next();
+            TmTask t = it.next();
             it.remove();
+            // Task may already be replaced with new one. Then, new one should be kept.
+            unregisterTask(t);
         }
         P.bug(mWatchedTaskSet.size() == mMaxWatchedTask);
     }
@@ -171,67 +271,112 @@ public class TaskManager extends TaskManagerBase {
         //noinspection unchecked
         TaskInfo ti = getTaskInfo(tmTask);
         P.bug(ti.task == tmTask);
+        journalFinished(ti, false);
+        TaskHistory history = mHistory;
+        if (null != history) {
+            // History mode: Keep compact record only, and release task immediately.
+            // Task is recorded even if it is already replaced with new one.
+            unregisterTask(tmTask);
+            if (null == mWatchFilter
+                    || mWatchFilter.filter(this, tmTask, result, ex))
+                history.record(tmTask, ti.tid, ti.ttype, ti.addedTime, ti.mStartedTime, result, ex);
+            return false;
+        }
+
+        if (mTaskMap.get(ti.tid) != tmTask)
+            // This task is already replaced with new one, or removed.
+            // So, we don't need to manage this one.
+            return false;
+
+        if (!(mMaxWatchedTask > 0
+              && null != mWatchFilter
+              && mWatchFilter.filter(this, tmTask, result, ex))) {
+            // We don't care return value intentionally
+            unregisterTask(tmTask);
+            return false;
+        }
+
         // Keep watching
         synchronized (mTmLock) {
-            if (mTaskMap.get(ti.tid) != tmTask)
-                // This task is already replaced with new one, or removed.
-                // So, we don't need to manage this one.
-                return false;
-
             P.bug(!mWatchedTaskSet.contains(tmTask));
-            if (mMaxWatchedTask > 0
-                    && null != mWatchFilter
-                    && mWatchFilter.filter(this, tmTask, result, ex)) {
-                if (mWatchedTaskSet.size() >= limitWatchedTask())
-                    shrinkWatchedTaskTiLocked();
-                mWatchedTaskSet.add(tmTask);
-                if (DBG) {
-                    if (0 == (mWatchedTaskSet.size() % 10))
-                        P.v("watchedTaskSet-size: " + mWatchedTaskSet.size());
-                }
-                return true;
-            } else {
-                // We don't care return value intentionally
-                mTaskMap.remove(ti.tid);
+            if (mWatchedTaskSet.size() >= limitWatchedTask())
+                shrinkWatchedTaskTiLocked();
+            mWatchedTaskSet.add(tmTask);
+            // Task may be replaced by addTask_() after checking above.
+            // addTask_() removes replaced task from mWatchedTaskSet after replacing map entry.
+            // So, checking again here(after adding to set) is enough.
+            if (mTaskMap.get(ti.tid) != tmTask) {
+                mWatchedTaskSet.remove(tmTask);
                 return false;
             }
+            if (DBG) {
+                if (0 == (mWatchedTaskSet.size() % 10))
+                    P.v("watchedTaskSet-size: " + mWatchedTaskSet.size());
+            }
+            return true;
         }
     }
 
     /**
-     * [ NOTE - Policy ]
-     * It leads to remove information about old task, failing to replace done-task by adding new
-     *   one.
+     * Register task to this manager before adding it to task Q.
+     * @return false if task having same id is running or waiting.
      */
     private boolean
-    addTask_(@NotNull final TmTask task, @NotNull final TaskInfo ti) {
+    registerTask(@NotNull final TmTask task, @NotNull final TaskInfo ti) {
         P.bug(task == ti.task && task.isReady());
+        if (DBG) P.v("addTask: " + taskDbgName(task, ti.tid));
         TmTask ot;
-        synchronized (mTmLock) {
-            if (DBG) P.v("addTask: " + taskDbgName(task, ti.tid));
+        while (true) {
             ot = mTaskMap.get(ti.tid);
             if (null != ot
                     && !ot.isDone()) {
                 if (DBG) P.w("Running task already exists: " + taskDbgName(task, ti.tid));
                 return false;
-            } else {
-                // Replace old task with newly added task.
-                mTaskMap.put(ti.tid, task);
-                mWatchedTaskSet.remove(ot);
             }
+            // Replace old(done) task with newly added task.
+            if (null == ot) {
+                if (null == mTaskMap.putIfAbsent(ti.tid, task))
+                    break;
+            } else if (mTaskMap.replace(ti.tid, ot, task))
+                break;
+            // Entry is changed by others. Try again.
         }
         task.setTmTag(ti);
+        indexTask(task);
+        // Task should be journaled before it is started.
+        journalAdded(task, ti);
+        if (null != ot) {
+            unindexTask(ot);
+            synchronized (mTmLock) {
+                mWatchedTaskSet.remove(ot);
+            }
+        }
         //noinspection unchecked
         task.addEventListener(getOwner(), mTaskEventHandler);
+        return true;
+    }
+
+    /**
+     * [ NOTE - Policy ]
+     * It leads to remove information about old task, failing to replace done-task by adding new
+     *   one. (We don't restore mTaskMap and mWatchedTaskSet.)
+     */
+    private void
+    handleAddFailure(@NotNull final TmTask task) {
+        TaskInfo ti = getTaskInfo(task);
+        if (DBG) P.w("Adding task failed: " + taskDbgName(task, ti.tid));
+        //noinspection unchecked
+        task.removeEventListener(mTaskEventHandler);
+        unregisterTask(task);
+        journalFinished(ti, true);
+    }
+
+    private boolean
+    addTask_(@NotNull final TmTask task, @NotNull final TaskInfo ti) {
+        if (!registerTask(task, ti))
+            return false;
         if (!super.addTask(task)) {
-            if (DBG) P.w("Adding task failed: " + taskDbgName(task, ti.tid));
-            //noinspection unchecked
-            task.removeEventListener(mTaskEventHandler);
-            // [ NOTE ] We don't restore mTaskMap and mWatchedTaskSet.
-            // This is a kind of policy!!! See comment of this function.
-            synchronized (mTmLock) {
-                mTaskMap.remove(ti.tid);
-            }
+            handleAddFailure(task);
             return false;
         }
         return true;
@@ -242,6 +387,12 @@ public class TaskManager extends TaskManagerBase {
     // Protected
     //
     ///////////////////////////////////////////////////////////////////////////
+    @Override
+    protected Object
+    getQuotaKey(@NotNull TmTask task) {
+        return getTaskInfo(task).ttype;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     //
     // Builder
@@ -287,19 +438,100 @@ public class TaskManager extends TaskManagerBase {
         return taskDbgName(tmTask, ti.tid);
     }
 
+    /**
+     * Tasks added or removed while this function is running, may or may not be included.
+     */
     @NotNull
     public TmTask[]
     getTasks(@NotNull Object typ) {
-        LinkedList<TmTask> l = new LinkedList<>();
-        synchronized (mTmLock) {
-            for(TmTask t : mTaskMap.values()) {
-                //noinspection unchecked
-                TaskInfo ti = getTaskInfo(t);
-                if (ti.ttype.equals(typ))
-                    l.add(t);
-            }
+        Set<TmTask> set = mTypeIndex.get(typ);
+        if (null == set)
+            return new TmTask[0];
+        return set.toArray(new TmTask[set.size()]);
+    }
+
+    /**
+     * Read-only live view of tasks of type {@code typ}. Nothing is copied.
+     * Iterating it is safe even if tasks are added or removed at the same time.
+     * (Tasks added or removed while iterating, may or may not be seen.)
+     * If task of type {@code typ} has never been added, empty collection is returned, and it
+     *   doesn't see tasks added after this. Lookup of unknown type doesn't create index entry.
+     */
+    @NotNull
+    public Collection<TmTask>
+    getTasksView(@NotNull Object typ) {
+        Set<TmTask> set = mTypeIndex.get(typ);
+        if (null == set)
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * Turn on/off history mode.
+     * In history mode, finished tasks accepted by watch filter (all finished tasks if there is
+     *   no filter) are recorded to {@code history}, and removed from this manager immediately,
+     *   instead of being watched.
+     * Tasks already being watched are not affected.
+     *
+     * @param history null to turn off history mode.
+     */
+    public void
+    setHistory(TaskHistory history) {
+        mHistory = history;
+    }
+
+    public TaskHistory
+    getHistory() {
+        return mHistory;
+    }
+
+    /**
+     * Set write-ahead journal. Tasks added after this, are journaled if
+     *   {@link TaskJournal.Codec#encode} returns descriptor for them.
+     * Call {@link #recoverJournal()} to re-add tasks unfinished at last run.
+     *
+     * @param journal null to stop journaling.
+     */
+    public void
+    setJournal(TaskJournal journal) {
+        mJournal = journal;
+    }
+
+    public TaskJournal
+    getJournal() {
+        return mJournal;
+    }
+
+    /**
+     * Re-add tasks that were not finished when journal was written last time.
+     * Each descriptor is passed to {@link TaskJournal.Codec#restore} only once.
+     * Restored tasks are journaled again as new ones.
+     *
+     * @return Number of tasks recovered.
+     */
+    public int
+    recoverJournal() {
+        TaskJournal journal = mJournal;
+        if (null == journal)
+            return 0;
+        int n = 0;
+        for (TaskJournal.Entry e : journal.takeRecoveringEntries()) {
+            // Old entry is dropped first. Task is journaled again if it's restored.
+            journal.finished(e.id, true);
+            if (journal.getCodec().restore(this, e.desc, e.isStarted()))
+                n++;
         }
-        return l.toArray(new TmTask[l.size()]);
+        return n;
+    }
+
+    /**
+     * Limit number of running tasks of type {@code typ}.
+     * Tasks of a type whose limit is reached, are skipped, and other tasks are started instead.
+     * @param maxJobs minus value removes the limit.
+     */
+    public void
+    setTypeQuota(@NotNull Object typ, int maxJobs) {
+        setQuota(typ, maxJobs);
     }
 
     public TaskInfo
@@ -310,9 +542,7 @@ public class TaskManager extends TaskManagerBase {
 
     public TmTask
     getTask(@NotNull Object tid) {
-        synchronized (mTmLock) {
-            return mTaskMap.get(tid);
-        }
+        return mTaskMap.get(tid);
     }
 
     public boolean
@@ -325,21 +555,47 @@ public class TaskManager extends TaskManagerBase {
         return addTask(task, task, sUnspecifiedTaskType, null);
     }
 
+    /**
+     * Add tasks at once. Task instance is used as task id of each task.
+     * See {@link TaskManagerBase#addTasks}.
+     * @return Number of tasks added.
+     */
+    public int
+    addTasks(@NotNull Collection<? extends TmTask> tasks, @NotNull Object typ) {
+        ArrayList<TmTask> registered = new ArrayList<>(tasks.size());
+        for (TmTask t : tasks) {
+            if (registerTask(t, new TaskInfo(t, t, typ, null))) {
+                t.setManager(this);
+                registered.add(t);
+            }
+        }
+        ArrayList<TmTask> rejected = new ArrayList<>();
+        int n = addTasks_(registered, rejected);
+        for (TmTask t : rejected)
+            handleAddFailure(t);
+        return n;
+    }
+
+    @Override
+    public int
+    addTasks(@NotNull Collection<? extends TmTask> tasks) {
+        return addTasks(tasks, sUnspecifiedTaskType);
+    }
+
     public boolean
     removeWatchedTask(@NotNull TmTask task) {
         TaskInfo ti = getTaskInfo(task);
         P.bug(task.isDone());
+        if (DBG) P.v("removeWatchedTask: " + task.getUniqueName());
+        if (!unregisterTask(task)) {
+            if (DBG) P.w("Try to removed unknown watched task: " + task.getUniqueName());
+            return false;
+        }
         synchronized (mTmLock) {
-            if (DBG) P.v("removeWatchedTask: " + task.getUniqueName());
-            if (mTaskMap.get(ti.tid) != task) {
-                if (DBG) P.w("Try to removed unknown watched task: " + task.getUniqueName());
-                return false;
-            }
             // return value ignored intentionally.
-            mTaskMap.remove(ti.tid);
             mWatchedTaskSet.remove(task);
-            return true;
         }
+        return true;
     }
 
 }
@@ -38,10 +38,15 @@ package free.yhc.baselib.async;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import free.yhc.baselib.Logger;
 import free.yhc.baselib.adapter.HandlerAdapter;
@@ -57,11 +62,16 @@ public class TaskManagerBase {
 
     private final HandlerAdapter mOwner;
     private final int mMaxJobs;
+    // Adaptive run-slot count. null if it's not used.
+    private volatile ConcurrencyLimit mLimit = null;
 
     private final TaskEventListener mTaskEventListener = new TaskEventListener();
     private final LinkedHashMap<TaskQEventListener, HandlerAdapter> mListenerMap
             = new LinkedHashMap<>();
     private final HashMap<Object, Object> mTagMap = new HashMap<>();
+    // See getTaskQEventPublisher().
+    private final AtomicReference<EventPublisher<TaskQEventItem>> mQEventPublisher
+            = new AtomicReference<>(null);
 
     // ------------------------------------------------------------------------
     // Members  synchronization is required.
@@ -70,7 +80,7 @@ public class TaskManagerBase {
     /*
      * TaskQ and task state(ThreadEx.State) map.
      * - readyQ : READY
-     * - mRunQ : STARTED,
+     * - mRunQ : STARTED, (task -> time(ns) when task is moved to runQ)
      * - mCancelQ : CANCELLING,
      * Tasks are removed from Q when it reaches to following states
      * : DONE, CANCELLED, TERMINATED or TERMINATED_CANCELLED
@@ -81,7 +91,20 @@ public class TaskManagerBase {
      * Task having high priority will be started(moved to runQ) with priority.
      */
     private final TaskReadyQ mReadyQ = new TaskReadyQ();
-    private final LinkedHashSet<TmTask> mRunQ = new LinkedHashSet<>();
+    private final LinkedHashMap<TmTask, Long> mRunQ = new LinkedHashMap<>();
+    /*
+     * Concurrency quota per quota key. See getQuotaKey().
+     * - mQuotaMap : quota key -> max number of running tasks.
+     * - mQuotaRunCntMap : quota key -> number of running tasks. Only keys having quota.
+     * - mParkedQMap : quota key -> tasks that reached to the head of readyQ while their quota
+     *   is full. They are moved back to readyQ when slot for their key is available.
+     *   So, saturated key doesn't block other tasks in readyQ.
+     *   Parked tasks are regarded as tasks in readyQ (READY).
+     */
+    private final HashMap<Object, Integer> mQuotaMap = new HashMap<>();
+    private final HashMap<Object, Integer> mQuotaRunCntMap = new HashMap<>();
+    private final HashMap<Object, TaskReadyQ> mParkedQMap = new HashMap<>();
+    private int mParkedCnt = 0;
 
     protected enum TaskQType {
         READY, // readyQ
@@ -96,6 +119,24 @@ public class TaskManagerBase {
                 @NotNull TmTask task);
     }
 
+    /**
+     * Listener receiving events of tasks handled together (ex. by {@link #addTasks}) at once.
+     * Events of single task are still notified via {@link #onEvent}.
+     * For listeners NOT implementing this interface, {@link #onEvent} is called for each task
+     *   in one posted runnable.
+     */
+    public interface TaskQBatchEventListener extends TaskQEventListener {
+        /**
+         * @param szReady Size of ready Q after all tasks are handled.
+         * @param szRun Size of run Q after all tasks are handled.
+         */
+        void onBatchEvent(
+                @NotNull TaskManagerBase tm,
+                @NotNull TaskQEvent ev,
+                int szReady, int szRun,
+                @NotNull TmTask[] tasks);
+    }
+
     public enum TaskQEvent {
         ADDED_TO_READY,
 
@@ -118,6 +159,29 @@ public class TaskManagerBase {
         REMOVED_FROM_RUN,
     }
 
+    /**
+     * Event delivered by {@link #getTaskQEventPublisher()}.
+     * Events of tasks handled together (See {@link TaskQBatchEventListener}) are in one item.
+     */
+    public static class TaskQEventItem {
+        public final TaskManagerBase tm;
+        public final TaskQEvent ev;
+        public final int szReady;
+        public final int szRun;
+        public final TmTask[] tasks;
+
+        TaskQEventItem(@NotNull TaskManagerBase tm,
+                       @NotNull TaskQEvent ev,
+                       int szReady, int szRun,
+                       @NotNull TmTask[] tasks) {
+            this.tm = tm;
+            this.ev = ev;
+            this.szReady = szReady;
+            this.szRun = szRun;
+            this.tasks = tasks;
+        }
+    }
+
     // ========================================================================
     //
     // ========================================================================
@@ -129,7 +193,7 @@ public class TaskManagerBase {
             if (DBG) P.v("onCancelled : " + task.getUniqueName()
                          + ", Param: " + Util.toString(param));
             P.bug(isOwnerThread());
-            removeTaskFromRunQ(task);
+            removeTaskFromRunQ(task, false, false);
         }
 
         @Override
@@ -141,23 +205,94 @@ public class TaskManagerBase {
                          + ", Result: " + Util.toString(result)
                          + ", Except: " + Util.toString(ex));
             P.bug(isOwnerThread());
-            removeTaskFromRunQ(task);
+            removeTaskFromRunQ(task, true, null != ex);
         }
     }
 
-    private static class TaskReadyQ {
+    /*
+     * Tasks are kept at bucket of their priority.
+     * - mIndex : task -> bucket index. So, contains/remove don't need to scan buckets.
+     * - mNonEmpty : bit 'i' is set if bucket 'i' is not empty.
+     *   So, the highest non-empty bucket is found by one bit operation.
+     * All operations are O(1) (except for enQFront() out of time order).
+     * This is NOT thread-safe.
+     *
+     * Priority aging
+     * --------------
+     * If aging interval is set, priority of waiting task is regarded as being raised by one
+     *   for every interval it waits (without upper limit).
+     * Each bucket is FIFO. So, only heads of buckets are compared with their aged priorities.
+     * (Task having higher original priority wins in tie.)
+     *
+     * Putting back
+     * ------------
+     * Task dequeued once but not run (ex. parked by quota), is put back to the head of it's
+     *   bucket with it's original enqueue time (See enQFront()). So, it doesn't lose it's turn
+     *   and aged priority.
+     */
+    static class TaskReadyQ {
+        // task -> time(ns, System.nanoTime()) at when task is enqueued.
         @SuppressWarnings("unchecked")
-        private final LinkedHashSet<TmTask>[] mQ = new LinkedHashSet[ThreadEx.TASK_PRIORITY_MAX];
+        private final LinkedHashMap<TmTask, Long>[] mQ
+                = new LinkedHashMap[ThreadEx.TASK_PRIORITY_MAX];
+        // Tasks put back by enQFront(). Dequeued before tasks in mQ of same bucket.
+        // Ordered by enqueue time.
+        @SuppressWarnings("unchecked")
+        private final LinkedHashMap<TmTask, Long>[] mFront
+                = new LinkedHashMap[ThreadEx.TASK_PRIORITY_MAX];
+        // Enqueue time of the last task of mFront.
+        private final long[] mFrontTail = new long[ThreadEx.TASK_PRIORITY_MAX];
+        private final HashMap<TmTask, Integer> mIndex = new HashMap<>();
+        private int mNonEmpty = 0;
+        private long mAgingInterval = 0; // (ns) 0 means "no aging"
+        // Enqueue time of the task returned by the last deQ().
+        private long mLastEnQTime = 0;
 
         @NotNull
         private TmTask
-        deQFromLinkedHash(LinkedHashSet<TmTask> hs) {
-            Iterator<TmTask> itr = hs.iterator();
+        deQFromLinkedHash(LinkedHashMap<TmTask, Long> hm) {
+            Iterator<TmTask> itr = hm.keySet().iterator();
             TmTask t = itr.next();
             itr.remove();
             return t;
         }
 
+        private LinkedHashMap<TmTask, Long>
+        headQ(int i) {
+            return mFront[i].isEmpty() ? mQ[i] : mFront[i];
+        }
+
+        private long
+        headEnQTime(int i) {
+            return headQ(i).values().iterator().next();
+        }
+
+        /**
+         * @return index of bucket from which next task is dequeued. -1 if queue is empty.
+         */
+        private int
+        nextBucket() {
+            if (0 == mNonEmpty)
+                return -1;
+            // index 0 is hightest priority task
+            int top = Integer.numberOfTrailingZeros(mNonEmpty);
+            if (mAgingInterval <= 0)
+                return top;
+            long now = System.nanoTime();
+            int besti = top;
+            long bestPri = i2p(top) + (now - headEnQTime(top)) / mAgingInterval;
+            for (int i = top + 1; i < mQ.length; i++) {
+                if (0 == (mNonEmpty & (1 << i)))
+                    continue;
+                long pri = i2p(i) + (now - headEnQTime(i)) / mAgingInterval;
+                if (pri > bestPri) {
+                    besti = i;
+                    bestPri = pri;
+                }
+            }
+            return besti;
+        }
+
         private int
         p2i(int pri) {
             // index : 0(max pri) <-----> 9 (min pri)
@@ -169,51 +304,144 @@ public class TaskManagerBase {
             return ThreadEx.TASK_PRIORITY_MAX - i;
         }
 
+        private void
+        updateNonEmpty(int i) {
+            if (mQ[i].isEmpty() && mFront[i].isEmpty())
+                mNonEmpty &= ~(1 << i);
+            else
+                mNonEmpty |= 1 << i;
+        }
+
         TaskReadyQ(){
-            for (int i = 0; i < mQ.length; i++)
-                mQ[i] = new LinkedHashSet<>();
+            for (int i = 0; i < mQ.length; i++) {
+                mQ[i] = new LinkedHashMap<>();
+                mFront[i] = new LinkedHashMap<>();
+            }
+        }
+
+        /**
+         * @param interval (ms) 0 or minus value disables aging.
+         */
+        void
+        setAgingInterval(long interval) {
+            mAgingInterval = TimeUnit.MILLISECONDS.toNanos(interval);
         }
 
         int
         size() {
-            int n = 0;
-            for (LinkedHashSet<TmTask> s : mQ)
-                n += s.size();
-            return n;
+            return mIndex.size();
         }
 
         boolean
         contains(@NotNull TmTask t) {
-            for (LinkedHashSet<TmTask> s : mQ) {
-                if (s.contains(t))
-                    return true;
-            }
-            return false;
+            return mIndex.containsKey(t);
         }
 
         boolean
         enQ(@NotNull TmTask t) {
+            return enQ(t, System.nanoTime());
+        }
+
+        /**
+         * Append task to the tail of it's bucket.
+         * @param time (ns) {@link System#nanoTime()} at when task is enqueued.
+         */
+        boolean
+        enQ(@NotNull TmTask t, long time) {
             P.bug(ThreadEx.TASK_PRIORITY_MIN <= t.getPriority()
                                    && ThreadEx.TASK_PRIORITY_MAX >= t.getPriority());
-            return mQ[p2i(t.getPriority())].add(t);
+            if (mIndex.containsKey(t))
+                return false;
+            int i = p2i(t.getPriority());
+            mQ[i].put(t, time);
+            mIndex.put(t, i);
+            updateNonEmpty(i);
+            return true;
         }
 
+        /**
+         * Put task back to the head of it's bucket.
+         * Tasks put back are dequeued before other tasks in the bucket, in order of {@code time}.
+         * @param time (ns) Original enqueue time of the task. See {@link #lastEnQTime()}.
+         */
         boolean
-        remove(@NotNull TmTask t) {
+        enQFront(@NotNull TmTask t, long time) {
             P.bug(ThreadEx.TASK_PRIORITY_MIN <= t.getPriority()
-                           && ThreadEx.TASK_PRIORITY_MAX >= t.getPriority());
-            return mQ[p2i(t.getPriority())].remove(t);
+                                   && ThreadEx.TASK_PRIORITY_MAX >= t.getPriority());
+            if (mIndex.containsKey(t))
+                return false;
+            int i = p2i(t.getPriority());
+            LinkedHashMap<TmTask, Long> f = mFront[i];
+            if (f.isEmpty() || time - mFrontTail[i] >= 0) {
+                f.put(t, time);
+                mFrontTail[i] = time;
+            } else {
+                // Tasks are usually put back in order of time. So, this is rare.
+                LinkedHashMap<TmTask, Long> nf = new LinkedHashMap<>();
+                boolean added = false;
+                for (Map.Entry<TmTask, Long> e : f.entrySet()) {
+                    if (!added && time - e.getValue() < 0) {
+                        nf.put(t, time);
+                        added = true;
+                    }
+                    nf.put(e.getKey(), e.getValue());
+                }
+                mFront[i] = nf;
+            }
+            mIndex.put(t, i);
+            updateNonEmpty(i);
+            return true;
+        }
+
+        boolean
+        remove(@NotNull TmTask t) {
+            Integer i = mIndex.remove(t);
+            if (null == i)
+                return false;
+            if (null == mFront[i].remove(t))
+                mQ[i].remove(t);
+            updateNonEmpty(i);
+            return true;
+        }
+
+        /**
+         * @return priority of task that will be dequeued next. 0 if queue is empty.
+         */
+        int
+        peekPriority() {
+            int i = nextBucket();
+            return i < 0 ? 0 : i2p(i);
+        }
+
+        /**
+         * @return time(ns) at when task that will be dequeued next, was enqueued.
+         *         0 if queue is empty.
+         */
+        long
+        peekEnQTime() {
+            int i = nextBucket();
+            return i < 0 ? 0 : headEnQTime(i);
         }
 
         // get Next task having highest priority.
         TmTask
         deQ() {
-            // index 0 is hightest priority task
-            for (LinkedHashSet<TmTask> s : mQ) {
-                if (s.size() > 0)
-                    return deQFromLinkedHash(s);
-            }
-            return null;
+            int i = nextBucket();
+            if (i < 0)
+                return null;
+            mLastEnQTime = headEnQTime(i);
+            TmTask t = deQFromLinkedHash(headQ(i));
+            mIndex.remove(t);
+            updateNonEmpty(i);
+            return t;
+        }
+
+        /**
+         * @return Enqueue time(ns) of the task returned by the last {@link #deQ()}.
+         */
+        long
+        lastEnQTime() {
+            return mLastEnQTime;
         }
     }
 
@@ -229,29 +457,135 @@ public class TaskManagerBase {
     private void
     notifyTaskQEventQLocked(@NotNull final TaskQEvent ev,
                             @NotNull final TmTask task) {
-        final int szReady = mReadyQ.size();
-        final int szRun = mRunQ.size();
+        notifyTaskQEvent(ev, readyQSizeQLocked(), mRunQ.size(), task);
+    }
 
-        synchronized (mListenerMap) {
-            for (final TaskQEventListener l : mListenerMap.keySet()) {
-                HandlerAdapter h = mListenerMap.get(l);
-                if (!h.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        //noinspection unchecked
-                        l.onEvent(TaskManagerBase.this, ev, szReady, szRun, task);
-                    }
-                })) { P.bug(); }
+    private void
+    notifyTaskQEventsQLocked(@NotNull final TaskQEvent ev,
+                             @NotNull final TmTask[] tasks) {
+        notifyTaskQEvents(ev, readyQSizeQLocked(), mRunQ.size(), tasks);
+    }
+
+    // ========================================================================
+    // Quota
+    // ========================================================================
+    private int
+    readyQSizeQLocked() {
+        return mReadyQ.size() + mParkedCnt;
+    }
+
+    /**
+     * @return null if there is no quota for this task.
+     */
+    private Object
+    quotaKeyQLocked(@NotNull TmTask task) {
+        if (mQuotaMap.isEmpty())
+            return null;
+        Object key = getQuotaKey(task);
+        return null != key && mQuotaMap.containsKey(key) ? key : null;
+    }
+
+    private int
+    quotaRunCntQLocked(@NotNull Object key) {
+        Integer n = mQuotaRunCntMap.get(key);
+        return null == n ? 0 : n;
+    }
+
+    private void
+    addQuotaRunCntQLocked(@NotNull TmTask task, int delta) {
+        Object key = quotaKeyQLocked(task);
+        if (null != key)
+            mQuotaRunCntMap.put(key, quotaRunCntQLocked(key) + delta);
+    }
+
+    private boolean
+    isSaturatedQLocked(@NotNull TmTask task) {
+        Object key = quotaKeyQLocked(task);
+        return null != key && quotaRunCntQLocked(key) >= mQuotaMap.get(key);
+    }
+
+    /**
+     * @param enQTime (ns) Time at when task was enqueued to readyQ. It is kept while parked.
+     */
+    private void
+    parkQLocked(@NotNull TmTask task, long enQTime) {
+        Object key = quotaKeyQLocked(task);
+        P.bug(null != key);
+        TaskReadyQ pq = mParkedQMap.get(key);
+        if (null == pq) {
+            pq = new TaskReadyQ();
+            mParkedQMap.put(key, pq);
+        }
+        pq.enQ(task, enQTime);
+        mParkedCnt++;
+    }
+
+    /**
+     * Move parked tasks of {@code key} back to the head of readyQ, with their original enqueue
+     *   time. So, they are run before tasks enqueued after them.
+     * @param max maximum number of tasks to move.
+     */
+    private void
+    unparkQLocked(@NotNull Object key, int max) {
+        TaskReadyQ pq = mParkedQMap.get(key);
+        if (null == pq)
+            return;
+        TmTask t;
+        while (max-- > 0
+               && null != (t = pq.deQ())) {
+            mReadyQ.enQFront(t, pq.lastEnQTime());
+            mParkedCnt--;
+        }
+        if (0 == pq.size())
+            mParkedQMap.remove(key);
+    }
+
+    private boolean
+    removeParkedQLocked(@NotNull TmTask task) {
+        for (TaskReadyQ pq : mParkedQMap.values()) {
+            if (pq.remove(task)) {
+                mParkedCnt--;
+                return true;
             }
         }
+        return false;
+    }
+
+    private boolean
+    isParkedQLocked(@NotNull TmTask task) {
+        for (TaskReadyQ pq : mParkedQMap.values()) {
+            if (pq.contains(task))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return next task that can be run now. Tasks whose quota is full, are parked.
+     */
+    private TmTask
+    deQRunnableQLocked() {
+        TmTask t;
+        while (null != (t = mReadyQ.deQ())) {
+            if (!isSaturatedQLocked(t))
+                return t;
+            parkQLocked(t, mReadyQ.lastEnQTime());
+        }
+        return null;
     }
 
     // ========================================================================
     //
     // ========================================================================
-    private void
+    /**
+     * Fill all available run slots with tasks in readyQ.
+     * This is called whenever run slots or ready tasks may be changed
+     *   (ex. {@link #setConcurrencyLimit}). Subclass managing it's own queues SHOULD override this.
+     * @return true if one or more tasks are moved to runQ.
+     */
+    protected boolean
     balanceTaskQ() {
-        final TmTask task;
+        final TmTask[] tasks;
         synchronized (mQLock) {
             /* There are two jobs.
              * - Updating taskQ
@@ -269,9 +603,13 @@ public class TaskManagerBase {
              * |
              * v
              */
-            if (mReadyQ.size() > 0
-                    && mRunQ.size() < mMaxJobs) {
-                task = mReadyQ.deQ();
+            int slots = Math.min(mReadyQ.size(), getJobLimit() - mRunQ.size());
+            if (slots <= 0)
+                return false;
+            ArrayList<TmTask> l = new ArrayList<>(slots);
+            TmTask task;
+            while (l.size() < slots
+                   && null != (task = deQRunnableQLocked())) {
                 if (DBG) {
                     P.bug(!mReadyQ.contains(task));
                     if (ThreadEx.State.READY != task.getState()) {
@@ -281,30 +619,49 @@ public class TaskManagerBase {
                 }
                 //noinspection unchecked
                 task.addEventListener(getOwner(), mTaskEventListener);
-                mRunQ.add(task); // EnQ(append) to runQ
-                notifyTaskQEventQLocked(TaskQEvent.MOVED_TO_RUN, task);
-            } else
-                task = null;
+                mRunQ.put(task, System.nanoTime()); // EnQ(append) to runQ
+                addQuotaRunCntQLocked(task, 1);
+                l.add(task);
+            }
+            if (l.isEmpty())
+                return false;
+            tasks = l.toArray(new TmTask[l.size()]);
+            notifyTaskQEventsQLocked(TaskQEvent.MOVED_TO_RUN, tasks);
         }
 
-        if (null != task) {
-            if (!task.start()) {
+        for (TmTask t : tasks) {
+            if (!t.start()) {
                 P.bug(false); // Something unexpected!
             }
         }
+        return true;
     }
 
+    /**
+     * @param finished true if task is finished(onPostRun). false if cancelled.
+     */
     private void
-    removeTaskFromRunQ(@NotNull final TmTask task) {
+    removeTaskFromRunQ(@NotNull final TmTask task, boolean finished, boolean failed) {
         P.bug(isOwnerThread());
         //noinspection unchecked
         task.removeEventListener(mTaskEventListener);
         synchronized (mQLock) {
-            if (mRunQ.remove(task)) {
+            int inflight = mRunQ.size();
+            Long startTime = mRunQ.remove(task);
+            if (null != startTime) {
+                if (finished)
+                    sampleRun(startTime, inflight, failed);
+                Object key = quotaKeyQLocked(task);
+                if (null != key) {
+                    addQuotaRunCntQLocked(task, -1);
+                    // Slot for this key is available.
+                    unparkQLocked(key, 1);
+                }
                 // if task is done or cancelled at runQ
                 notifyTaskQEventQLocked(TaskQEvent.REMOVED_FROM_RUN, task);
             } else P.bug(false); // This is totally unexpected!
         }
+        // Limit may be increased. So, more than one slot may be available.
         balanceTaskQ();
     }
 
@@ -313,11 +670,115 @@ public class TaskManagerBase {
     // Package private
     //
     ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Report a task finished at run Q to adaptive limit.
+     * @param startTime (ns) Time when task is moved to run Q.
+     * @param inflight Number of running tasks including this one.
+     */
+    void
+    sampleRun(long startTime, int inflight, boolean failed) {
+        ConcurrencyLimit limit = mLimit;
+        if (null != limit)
+            limit.onSample(System.nanoTime() - startTime, inflight, failed);
+    }
+
+    /**
+     * Notify events of {@code tasks} with one posted runnable per listener.
+     * Caller SHOULD guarantee the order of events.
+     */
+    void
+    notifyTaskQEvents(@NotNull final TaskQEvent ev,
+                      final int szReady,
+                      final int szRun,
+                      @NotNull final TmTask[] tasks) {
+        if (1 == tasks.length) {
+            notifyTaskQEvent(ev, szReady, szRun, tasks[0]);
+            return;
+        }
+        synchronized (mListenerMap) {
+            for (final TaskQEventListener l : mListenerMap.keySet()) {
+                HandlerAdapter h = mListenerMap.get(l);
+                if (!h.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (l instanceof TaskQBatchEventListener) {
+                            ((TaskQBatchEventListener)l).onBatchEvent(
+                                    TaskManagerBase.this, ev, szReady, szRun, tasks);
+                            return;
+                        }
+                        for (TmTask t : tasks)
+                            l.onEvent(TaskManagerBase.this, ev, szReady, szRun, t);
+                    }
+                })) { P.bug(); }
+            }
+        }
+    }
+
+    /**
+     * Caller SHOULD guarantee the order of events.
+     */
+    void
+    notifyTaskQEvent(@NotNull final TaskQEvent ev,
+                     final int szReady,
+                     final int szRun,
+                     @NotNull final TmTask task) {
+        synchronized (mListenerMap) {
+            for (final TaskQEventListener l : mListenerMap.keySet()) {
+                HandlerAdapter h = mListenerMap.get(l);
+                if (!h.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        //noinspection unchecked
+                        l.onEvent(TaskManagerBase.this, ev, szReady, szRun, task);
+                    }
+                })) { P.bug(); }
+            }
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     //
     // protected
     //
     ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Tasks having same quota key share concurrency quota set by {@link #setQuota}.
+     * Quota key of a task SHOULD NOT be changed while task is in this manager.
+     * @return null if task doesn't belong to any quota. (default)
+     */
+    protected Object
+    getQuotaKey(@NotNull TmTask task) {
+        return null;
+    }
+
+    /**
+     * Limit number of running tasks whose quota key is {@code key}.
+     * If quota is full, tasks of the key are skipped and other tasks in ready Q are started.
+     * @param maxJobs minus value removes quota.
+     */
+    protected void
+    setQuota(@NotNull Object key, int maxJobs) {
+        synchronized (mQLock) {
+            if (maxJobs < 0) {
+                mQuotaMap.remove(key);
+                mQuotaRunCntMap.remove(key);
+            } else {
+                if (!mQuotaMap.containsKey(key)) {
+                    int n = 0;
+                    for (TmTask t : mRunQ.keySet()) {
+                        if (key.equals(getQuotaKey(t)))
+                            n++;
+                    }
+                    mQuotaRunCntMap.put(key, n);
+                }
+                mQuotaMap.put(key, maxJobs);
+            }
+            // Parked tasks are re-checked at readyQ.
+            unparkQLocked(key, Integer.MAX_VALUE);
+        }
+        balanceTaskQ();
+    }
+
     /* TaskGroup has lot's of tasks to run. And it waits until all sub-tasks are done.
      * So, if TaskGroup is added to RunQ, it occupies one slot and just wating.
      * If TaskManager has only one slot, TaskGroup never finished (a kind of DeadLock!)
@@ -377,7 +838,8 @@ public class TaskManagerBase {
             return false;
         }
         synchronized (mQLock) {
-            if (mReadyQ.remove(task)) {
+            if (mReadyQ.remove(task)
+                    || removeParkedQLocked(task)) {
                 // Before added to runQ, task event listener is NOT added yet.
                 // So, we should handle post-run process here!
                 notifyTaskQEventQLocked(TaskQEvent.REMOVED_FROM_READY, task);
@@ -388,6 +850,91 @@ public class TaskManagerBase {
         return true;
     }
 
+    /**
+     * Tasks are enQed to readyQ with one lock acquisition and one queue event notification.
+     * And then, available run slots are filled at once.
+     * TaskGroup in {@code tasks} is started as {@link #addTask} does.
+     *
+     * @param rejected Tasks failed to be added are appended to this, if it is not null.
+     * @return Number of tasks added.
+     */
+    protected int
+    addTasks_(@NotNull Collection<? extends TmTask> tasks, List<TmTask> rejected) {
+        int n = 0;
+        ArrayList<TmTask> added = new ArrayList<>(tasks.size());
+        synchronized (mQLock) {
+            for (TmTask t : tasks) {
+                if (t instanceof TaskGroup)
+                    continue;
+                if (DBG) P.bug(ThreadEx.State.READY == t.getState());
+                if (mReadyQ.enQ(t))
+                    added.add(t);
+                else {
+                    if (DBG) P.w("Adding duplicated task");
+                    if (null != rejected)
+                        rejected.add(t);
+                }
+            }
+            if (!added.isEmpty())
+                notifyTaskQEventsQLocked(TaskQEvent.ADDED_TO_READY,
+                                         added.toArray(new TmTask[added.size()]));
+        }
+        balanceTaskQ();
+        n += added.size();
+
+        for (TmTask t : tasks) {
+            if (!(t instanceof TaskGroup))
+                continue;
+            if (addTaskGroup((TaskGroup)t))
+                n++;
+            else if (null != rejected)
+                rejected.add(t);
+        }
+        return n;
+    }
+
+    /**
+     * Tasks in readyQ are removed with one lock acquisition and one queue event notification.
+     *
+     * @param interrupt null to use {@link TaskBase#getInterruptOnCancel()} of each task.
+     * @return Number of tasks requested to be cancelled.
+     */
+    protected int
+    cancelTasks_(@NotNull Collection<? extends TmTask> tasks, Object cancelParam, Boolean interrupt) {
+        ArrayList<TmTask> targets = new ArrayList<>(tasks.size());
+        ArrayList<TmTask> removed = new ArrayList<>();
+        synchronized (mQLock) {
+            for (TmTask t : tasks) {
+                if (t instanceof TaskGroup)
+                    continue;
+                if (mReadyQ.remove(t)
+                        || removeParkedQLocked(t)) {
+                    removed.add(t);
+                    targets.add(t);
+                } else if (mRunQ.containsKey(t))
+                    targets.add(t);
+                else if (DBG) P.w("Cancel non-existing task");
+            }
+            if (!removed.isEmpty())
+                notifyTaskQEventsQLocked(TaskQEvent.REMOVED_FROM_READY,
+                                         removed.toArray(new TmTask[removed.size()]));
+        }
+        for (TmTask t : targets) {
+            //noinspection unchecked
+            t.cancel(cancelParam, null == interrupt ? t.getInterruptOnCancel() : interrupt);
+        }
+        int n = targets.size();
+        for (TmTask t : tasks) {
+            if (!(t instanceof TaskGroup))
+                continue;
+            if (cancelTaskGroup((TaskGroup)t,
+                                cancelParam,
+                                null == interrupt ? t.getInterruptOnCancel() : interrupt))
+                n++;
+        }
+        return n;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     //
     // Protected
@@ -426,11 +973,56 @@ public class TaskManagerBase {
         return mOwner;
     }
 
+    /**
+     * @return Maximum number of jobs given at creation. Run-slot count never exceeds this.
+     */
     public final int
     getMaxJobs() {
         return mMaxJobs;
     }
 
+    /**
+     * @return Current run-slot count. This is same with {@link #getMaxJobs()} if adaptive limit
+     *         is not used.
+     */
+    public final int
+    getJobLimit() {
+        ConcurrencyLimit limit = mLimit;
+        return null == limit ? mMaxJobs : Math.min(mMaxJobs, limit.getLimit());
+    }
+
+    /**
+     * Adjust run-slot count at runtime by {@code limit}.
+     * Running tasks are not affected even if limit is decreased below number of them.
+     * New tasks are not started until number of running tasks drops below the limit.
+     *
+     * @param limit null to use fixed {@link #getMaxJobs()} (default).
+     */
+    public void
+    setConcurrencyLimit(ConcurrencyLimit limit) {
+        mLimit = limit;
+        balanceTaskQ();
+    }
+
+    public ConcurrencyLimit
+    getConcurrencyLimit() {
+        return mLimit;
+    }
+
+    /**
+     * Enable priority aging to prevent starvation of low priority tasks.
+     * Priority of a task in ready Q is regarded as being raised by one for every {@code interval}
+     *   it waits. So, task of TASK_PRIORITY_MIN waiting longer than 9 * {@code interval} competes
+     *   with newly added task of TASK_PRIORITY_MAX.
+     * @param interval (ms) 0 or minus value disables aging (default).
+     */
+    public void
+    setPriorityAging(long interval) {
+        synchronized (mQLock) {
+            mReadyQ.setAgingInterval(interval);
+        }
+    }
+
     public final boolean
     isOwnerThread(@NotNull Thread thread) {
         return thread == mOwner.getThread();
@@ -466,12 +1058,13 @@ public class TaskManagerBase {
      * Requires QLock
      * @return null if task is NOT in this manager. Otherwise Q type in where task is.
      */
-    public final TaskQType
+    public TaskQType
     contains(@NotNull TmTask t) {
         synchronized (mQLock) {
-            if (mReadyQ.contains(t))
+            if (mReadyQ.contains(t)
+                    || isParkedQLocked(t))
                 return TaskQType.READY;
-            else if(mRunQ.contains(t))
+            else if(mRunQ.containsKey(t))
                 return TaskQType.RUN;
             return null;
         }
@@ -487,7 +1080,7 @@ public class TaskManagerBase {
     public int
     size() {
         synchronized (mQLock) {
-            return mReadyQ.size() + mRunQ.size();
+            return readyQSizeQLocked() + mRunQ.size();
         }
     }
 
@@ -501,8 +1094,8 @@ public class TaskManagerBase {
     addTask(@NotNull final TmTask task) {
         if (task instanceof TaskGroup)
             return addTaskGroup((TaskGroup)task);
-        else
-            return addTask_(task);
+        task.setManager(this);
+        return addTask_(task);
     }
 
     /**
@@ -528,6 +1121,35 @@ public class TaskManagerBase {
         return cancelTask(task, null);
     }
 
+    /**
+     * Add tasks at once. This is much faster than calling {@link #addTask} for each task.
+     * See {@link #addTask} for details.
+     * @return Number of tasks added.
+     */
+    public int
+    addTasks(@NotNull Collection<? extends TmTask> tasks) {
+        for (TmTask t : tasks)
+            t.setManager(this);
+        return addTasks_(tasks, null);
+    }
+
+    /**
+     * Cancel tasks at once. See {@link #cancelTask} for details.
+     * @return Number of tasks requested to be cancelled.
+     */
+    public int
+    cancelTasks(@NotNull Collection<? extends TmTask> tasks, Object param, boolean interrupt) {
+        return cancelTasks_(tasks, param, interrupt);
+    }
+
+    /**
+     * Interrupt-on-cancel of each task is used.
+     */
+    public int
+    cancelTasks(@NotNull Collection<? extends TmTask> tasks, Object param) {
+        return cancelTasks_(tasks, param, null);
+    }
+
     public boolean
     addTaskQEventListener(
             @NotNull HandlerAdapter listenerOwner,
@@ -548,6 +1170,43 @@ public class TaskManagerBase {
         return addTaskQEventListener(getOwner(), listener);
     }
 
+    /**
+     * Publisher of task Q events, for many subscribers with flow control.
+     * Events are published once at owner context of this manager, and delivered to
+     *   subscribers by demand. See {@link EventPublisher}.
+     * Publisher is never completed.
+     */
+    @NotNull
+    public final EventPublisher<TaskQEventItem>
+    getTaskQEventPublisher() {
+        EventPublisher<TaskQEventItem> pub = mQEventPublisher.get();
+        if (null != pub)
+            return pub;
+        if (!mQEventPublisher.compareAndSet(null, new EventPublisher<TaskQEventItem>()))
+            return mQEventPublisher.get();
+        final EventPublisher<TaskQEventItem> newPub = mQEventPublisher.get();
+        addTaskQEventListener(new TaskQBatchEventListener() {
+            @Override
+            public void
+            onEvent(@NotNull TaskManagerBase tm,
+                    @NotNull TaskQEvent ev,
+                    int szReady, int szRun,
+                    @NotNull TmTask task) {
+                newPub.publish(new TaskQEventItem(tm, ev, szReady, szRun, new TmTask[] { task }));
+            }
+
+            @Override
+            public void
+            onBatchEvent(@NotNull TaskManagerBase tm,
+                         @NotNull TaskQEvent ev,
+                         int szReady, int szRun,
+                         @NotNull TmTask[] tasks) {
+                newPub.publish(new TaskQEventItem(tm, ev, szReady, szRun, tasks));
+            }
+        });
+        return newPub;
+    }
+
     public boolean
     removeTaskQEventListener(@NotNull TaskQEventListener listener) {
         synchronized (mListenerMap) {
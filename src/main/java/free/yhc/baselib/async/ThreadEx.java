@@ -64,9 +64,13 @@ package free.yhc.baselib.async;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import free.yhc.baselib.Logger;
 import free.yhc.baselib.adapter.HandlerAdapter;
@@ -79,6 +83,10 @@ public abstract class ThreadEx<ResultT> {
 
     private static final AtomicLong sId = new AtomicLong(0);
 
+    // Executor used by tasks that are not given explicit one.
+    // 'null' means "new thread per task".
+    private static volatile Executor sDefaultExecutor = null;
+
     @SuppressWarnings("unused")
     public static final int TASK_PRIORITY_MIN = Thread.MIN_PRIORITY;  // 1
     @SuppressWarnings("unused")
@@ -92,18 +100,41 @@ public abstract class ThreadEx<ResultT> {
     private final long mId;
     private final String mLogPrefix;
 
-    private final Thread mThread;
+    private volatile String mName;
+    private final int mPriority;
     private final HandlerAdapter mOwner;
-    // In some cases, little bit complex operation may be required for state transition.
-    // So, using only atomic-reference is not enough.
-    private final Object mStateLock = new Object();
+    // Executor on which background job runs. 'null' means "new thread per task".
+    private volatile Executor mExecutor;
+    // Thread on where background job is running now.
+    // Protected by mRunnerLock, because pooled worker thread is re-used by other jobs.
+    // So, interrupting should be done only while this job is running on it.
+    private final Object mRunnerLock = new Object();
+    private Thread mRunner = null;
     private final AtomicBoolean mProgInit = new AtomicBoolean(false);
     // These two values are valid only after BG task is done.
     // See bgRun() for details.
     private final AtomicReference<ResultT> mResult = new AtomicReference<>(null);
     private final AtomicReference<Exception> mExcept = new AtomicReference<>(null);
 
-    private State mState = State.READY;
+    // State word : State.ordinal() | flags. See "State word" below.
+    private final AtomicInteger mState = new AtomicInteger(State.READY.ordinal());
+
+    /* Deferred completion. See deferCompletion().
+     * DEFER_NONE -> DEFER_WAITING (deferCompletion() in doAsync())
+     * DEFER_WAITING -> DEFER_COMPLETED (completeDeferred() before doAsync() returns)
+     *               -> DEFER_RETURNED (doAsync() returns before completeDeferred())
+     * DEFER_COMPLETED, DEFER_RETURNED -> DEFER_DONE (the other one of two finishes BG job)
+     */
+    private static final int DEFER_NONE = 0;
+    private static final int DEFER_WAITING = 1;
+    private static final int DEFER_COMPLETED = 2;
+    private static final int DEFER_RETURNED = 3;
+    private static final int DEFER_DONE = 4;
+    private final AtomicInteger mDefer = new AtomicInteger(DEFER_NONE);
+    private volatile boolean mSyncRun = false;
+    // Result given by completeDeferred(). Valid at DEFER_COMPLETED.
+    private volatile ResultT mDeferredResult = null;
+    private volatile Exception mDeferredExcept = null;
 
 
 
@@ -158,28 +189,85 @@ public abstract class ThreadEx<ResultT> {
         TERMINATED_CANCELLED
     }
 
+    /*
+     * State word
+     * ==========
+     * State is kept at one atomic integer, and changed only by compare-and-set.
+     * So, reading state never blocks.
+     *
+     * Transition and posting callback of it to owner, SHOULD be done in the same order.
+     * (ex. STARTED -> CANCELLING by cancel(), and then CANCELLING -> CANCELLED by background job.
+     *  <onCancel> SHOULD be posted before <onCancelled>.)
+     * To guarantee this, 'ST_POSTING' flag is set while callback of transition is being posted.
+     * Other transitions wait until the flag is cleared. Note that this is very short moment, and
+     *   only transitions (not reading) wait for it.
+     */
+    private static final State[] sStates = State.values();
+    private static final int ST_MASK = 0xff;
+    private static final int ST_POSTING = 0x100;
+    // See transit()
+    private static final int POSTING_SPIN_YIELDS = 64;
+    private static final long POSTING_PARK_NS = 50 * 1000;
+
     ///////////////////////////////////////////////////////////////////////////
     //
     // Internal functions.
     //
     ///////////////////////////////////////////////////////////////////////////
-    private void
-    setStateLocked(State st) {
-        if (DBG) P.v(getLogPrefix() + "State change: " + mState.name() + " -> " + st.name());
-        mState = st;
+    private static int
+    stateBit(State st) {
+        return 1 << st.ordinal();
     }
 
-    private void
-    setState(State st) {
-        synchronized (mStateLock) {
-            setStateLocked(st);
+    /**
+     * Change state if current state is one of states in {@code fromStates}.
+     * If {@code posting} is true, 'ST_POSTING' flag is set together. And caller SHOULD call
+     *   {@link #endPosting()} after posting callback of this transition.
+     *
+     * @param fromStates bit-or of {@link #stateBit(State)}
+     * @return state before transition. null if transition is not allowed at current state.
+     */
+    private State
+    transit(int fromStates, @NotNull State to, boolean posting) {
+        final int nw = to.ordinal() | (posting ? ST_POSTING : 0);
+        int spins = 0;
+        while (true) {
+            int w = mState.get();
+            if (0 != (w & ST_POSTING)) {
+                // Other is posting callback for previous transition.
+                // Posting is usually done in a moment. But poster may be preempted, or owner's
+                //   post() may block for a while. So, stop burning CPU after some tries.
+                if (spins++ < POSTING_SPIN_YIELDS)
+                    Thread.yield();
+                else
+                    LockSupport.parkNanos(POSTING_PARK_NS);
+                continue;
+            }
+            State st = sStates[w & ST_MASK];
+            if (0 == (fromStates & stateBit(st)))
+                return null;
+            if (mState.compareAndSet(w, nw)) {
+                if (DBG) P.v(getLogPrefix() + "State change: " + st.name() + " -> " + to.name());
+                return st;
+            }
         }
     }
 
-    @NotNull
-    private State
-    getStateLocked() {
-        return mState;
+    private void
+    endPosting() {
+        // Nobody changes state while 'ST_POSTING' is set.
+        int w = mState.get();
+        P.bug(0 != (w & ST_POSTING), getLogPrefix());
+        mState.set(w & ~ST_POSTING);
+    }
+
+    /**
+     * Used when state can be changed only at owner's context.
+     */
+    private void
+    setState(@NotNull State from, @NotNull State to) {
+        if (null == transit(stateBit(from), to, false))
+            P.bug(false, getLogPrefix() + getState().name() + " -> " + to.name());
     }
 
     private void
@@ -196,7 +284,7 @@ public abstract class ThreadEx<ResultT> {
             public void
             run() {
                 onCancelled(ex);
-                setState(State.TERMINATED_CANCELLED);
+                setState(State.CANCELLED, State.TERMINATED_CANCELLED);
             }
         });
     }
@@ -210,41 +298,126 @@ public abstract class ThreadEx<ResultT> {
             public void
             run() {
                 onPostRun(r, ex);
-                setState(State.TERMINATED);
+                setState(State.DONE, State.TERMINATED);
             }
         });
     }
 
+    /**
+     * Run background job on current (worker) thread.
+     * Worker thread may be shared with other jobs (ex. thread pool).
+     * So, every thread-attribute changed by this job SHOULD be restored.
+     */
+    private void
+    workerRun() {
+        final Thread t = Thread.currentThread();
+        final int opri = t.getPriority();
+        if (opri != mPriority)
+            t.setPriority(mPriority);
+        synchronized (mRunnerLock) {
+            mRunner = t;
+        }
+        try {
+            bgRun();
+        } finally {
+            synchronized (mRunnerLock) {
+                mRunner = null;
+            }
+            // Interrupt requested to this job SHOULD NOT be leaked to next job run on this thread.
+            //noinspection ResultOfMethodCallIgnored
+            Thread.interrupted();
+            if (opri != mPriority)
+                t.setPriority(opri);
+        }
+    }
+
+    private void
+    interruptRunner() {
+        synchronized (mRunnerLock) {
+            if (null != mRunner)
+                mRunner.interrupt();
+        }
+    }
+
+    private void
+    startWorker() {
+        final Runnable r = new Runnable() {
+            @Override
+            public void
+            run() {
+                workerRun();
+            }
+        };
+        Executor executor = mExecutor;
+        if (null != executor) {
+            try {
+                executor.execute(r);
+                return;
+            } catch (RejectedExecutionException e) {
+                // Task is already in STARTED state. So, it SHOULD be run anyway.
+                if (DBG) P.w(getLogPrefix() + "Executor rejects job. Run on new thread.");
+            }
+        }
+        Thread t = new Thread(r, getName());
+        t.setPriority(mPriority);
+        t.start();
+    }
+
+    /**
+     * Move to DONE or CANCELLED state, and post callback.
+     */
+    private void
+    finishBg(ResultT r, Exception ex) {
+        mResult.set(r);
+        mExcept.set(ex);
+        // State can be changed from STARTED to CANCELLING at any moment, but not vice versa.
+        if (null != transit(stateBit(State.STARTED), State.DONE, true)) {
+            try {
+                postOnPostRun(r, ex);
+            } finally {
+                endPosting();
+            }
+        } else {
+            if (null == transit(stateBit(State.CANCELLING), State.CANCELLED, true))
+                P.bug(false, getLogPrefix() + getState().name());
+            try {
+                postOnCancelled(ex);
+            } finally {
+                endPosting();
+            }
+        }
+        onBgFinished();
+    }
+
     private void
     bgRun() {
         ResultT r = null;
         Exception ex = null;
+        // true if completeDeferred() finishes this job.
+        // SHOULD NOT be decided by reading mDefer again, because completeDeferred() may change
+        //   it to DEFER_DONE at any moment after DEFER_RETURNED.
+        boolean deferred = false;
         try {
-            synchronized (mStateLock) {
-                if (State.CANCELLING == getStateLocked())
-                    return;
-                P.bug(State.STARTED == getStateLocked(), getLogPrefix());
-            }
+            State st = getState();
+            if (State.CANCELLING == st)
+                return;
+            P.bug(State.STARTED == st, getLogPrefix());
             r = doAsync();
+            if (mDefer.compareAndSet(DEFER_WAITING, DEFER_RETURNED)) {
+                deferred = true;
+                return;
+            }
+            if (mDefer.compareAndSet(DEFER_COMPLETED, DEFER_DONE)) {
+                r = mDeferredResult;
+                ex = mDeferredExcept;
+            }
         } catch (Exception e){
             ex = e;
+            // Deferred completion is given up. completeDeferred() will be ignored.
+            mDefer.set(DEFER_DONE);
         } finally {
-            boolean cancel = false;
-            mResult.set(r);
-            mExcept.set(ex);
-            synchronized (mStateLock) {
-                if (State.CANCELLING == getStateLocked()) {
-                    setStateLocked(State.CANCELLED);
-                    cancel = true;
-                } else {
-                    P.bug(State.STARTED == getStateLocked(), getLogPrefix());
-                    setStateLocked(State.DONE);
-                }
-            }
-            if (cancel)
-                postOnCancelled(ex);
-            else
-                postOnPostRun(r, ex);
+            if (!deferred)
+                finishBg(r, ex);
         }
     }
 
@@ -296,6 +469,58 @@ public abstract class ThreadEx<ResultT> {
         if (DBG) P.v(getLogPrefix() + "Progress: " +  prog);
     }
 
+    /**
+     * Called right after task moves to DONE or CANCELLED, and final callback is posted to owner.
+     * Unlike other callbacks, this is called at background job context (or at owner context
+     *   if task is cancelled before started). So, this SHOULD be short and thread-safe.
+     */
+    void
+    onBgFinished() {
+    }
+
+    /**
+     * Keep task in STARTED (or CANCELLING) state even after {@link #doAsync()} returns, until
+     *   {@link #completeDeferred} is called. Value returned by doAsync() is ignored.
+     * So, task waiting for other events (ex. completion of other tasks) doesn't need to block
+     *   worker thread.
+     * This SHOULD be called only in {@link #doAsync()}.
+     * If doAsync() throws exception, deferring is cancelled, and task finishes as usual.
+     *
+     * @return false if completion can't be deferred. (ex. task is run by {@link #startSync()})
+     */
+    protected final boolean
+    deferCompletion() {
+        if (mSyncRun)
+            return false;
+        return mDefer.compareAndSet(DEFER_NONE, DEFER_WAITING);
+    }
+
+    /**
+     * Finish task whose completion is deferred by {@link #deferCompletion()}.
+     * This can be called at any context, even before doAsync() returns.
+     * Result is handled as if it is returned(thrown) by doAsync().
+     *
+     * This SHOULD be called only once.
+     *
+     * @return false if completion is not deferred or already completed.
+     */
+    protected final boolean
+    completeDeferred(ResultT result, Exception ex) {
+        int d = mDefer.get();
+        if (DEFER_WAITING != d && DEFER_RETURNED != d)
+            return false;
+        mDeferredResult = result;
+        mDeferredExcept = ex;
+        if (mDefer.compareAndSet(DEFER_WAITING, DEFER_COMPLETED))
+            // doAsync() is not returned yet. It will finish this job.
+            return true;
+        if (mDefer.compareAndSet(DEFER_RETURNED, DEFER_DONE)) {
+            finishBg(result, ex);
+            return true;
+        }
+        return false;
+    }
+
     // ========================================================================
     // Abstracts
     // ========================================================================
@@ -322,21 +547,17 @@ public abstract class ThreadEx<ResultT> {
         P.bug(TASK_PRIORITY_MIN <= priority && TASK_PRIORITY_MAX >= priority);
         mId = sId.getAndIncrement();
         mLogPrefix = name + "(" + mId + "): ";
-        mThread = new Thread(name) {
-            @Override
-            public void
-            run() {
-                bgRun();
-            }
-        };
-        mThread.setPriority(priority);
+        mName = name;
+        mPriority = priority;
         mOwner = owner;
+        mExecutor = sDefaultExecutor;
     }
 
     public static abstract class Builder<B extends Builder, T extends ThreadEx> {
         protected String mName = ThreadEx.class.getSimpleName();
         protected HandlerAdapter mOwner = HelperHandler.get();
         protected int mPriority = ThreadEx.TASK_PRIORITY_NORM;
+        protected Executor mExecutor = ThreadEx.getDefaultExecutor();
 
         @NotNull
         public B
@@ -362,6 +583,40 @@ public abstract class ThreadEx<ResultT> {
             return (B)this;
         }
 
+        /**
+         * @param executor Executor on which background job runs.
+         *                 'null' means "new thread per task".
+         */
+        @NotNull
+        public B
+        setExecutor(Executor executor) {
+            mExecutor = executor;
+            //noinspection unchecked
+            return (B)this;
+        }
+
+        /**
+         * Run background job on virtual thread.
+         * Good for tasks blocked on I/O for most of time.
+         * See {@link VirtualThreadExecutor} for details.
+         */
+        @NotNull
+        public B
+        setVirtualThread() {
+            return setExecutor(VirtualThreadExecutor.get());
+        }
+
+        /**
+         * Apply options that are not passed to constructor.
+         * {@link #create()} SHOULD call this with newly created task.
+         */
+        @NotNull
+        protected <X extends T> X
+        applyOptions(@NotNull X t) {
+            t.setExecutor(mExecutor);
+            return t;
+        }
+
         @NotNull
         public abstract T create();
     }
@@ -376,19 +631,13 @@ public abstract class ThreadEx<ResultT> {
      */
     public final boolean
     cancel(final boolean interrupt) {
-        final boolean started;
-        synchronized (mStateLock) {
-            switch (getStateLocked()) {
-            case READY:
-                started = false;
-                break;
-            case STARTED:
-                started = true;
-                break;
-            default:
-                return false;
-            }
-            setStateLocked(State.CANCELLING);
+        State st = transit(stateBit(State.READY) | stateBit(State.STARTED),
+                           State.CANCELLING,
+                           true);
+        if (null == st)
+            return false;
+        final boolean started = State.STARTED == st;
+        try {
             postToOwner(new Runnable() {
                 @Override
                 public void
@@ -404,17 +653,25 @@ public abstract class ThreadEx<ResultT> {
                     onCancel(started);
                     if (started) {
                         if (interrupt)
-                            mThread.interrupt();
+                            interruptRunner();
                         // State transition is handled after background task is finished.
                     } else {
                         // cancel is requested for not-started thread.
                         // It means, there is no chance to handle post-cancel process after background task is finished.
                         // Therefore, handle all post-cancel process here.
-                        setState(State.CANCELLED);
-                        postOnCancelled(null);
+                        if (null == transit(stateBit(State.CANCELLING), State.CANCELLED, true))
+                            P.bug(false, getLogPrefix() + getState().name());
+                        try {
+                            postOnCancelled(null);
+                        } finally {
+                            endPosting();
+                        }
+                        onBgFinished();
                     }
                 }
             });
+        } finally {
+            endPosting();
         }
         return true;
     }
@@ -424,10 +681,9 @@ public abstract class ThreadEx<ResultT> {
      */
     public final boolean
     start() {
-        synchronized (mStateLock) {
-            if (State.READY != getStateLocked())
-                return false;
-            setStateLocked(State.STARTED);
+        if (null == transit(stateBit(State.READY), State.STARTED, true))
+            return false;
+        try {
             postToOwner(new Runnable() {
                 @Override
                 public void
@@ -435,8 +691,10 @@ public abstract class ThreadEx<ResultT> {
                     onStarted();
                 }
             });
+        } finally {
+            endPosting();
         }
-        mThread.start();
+        startWorker();
         return true;
     }
 
@@ -449,18 +707,20 @@ public abstract class ThreadEx<ResultT> {
      */
     public final ResultT
     startSync() throws Exception {
-        synchronized (mStateLock) {
-            if (State.READY != getStateLocked()) {
-                if (DBG) P.w("Task is NOT in ready state");
-                throw new BadStateException();
-            }
-            setStateLocked(State.STARTED);
+        if (null == transit(stateBit(State.READY), State.STARTED, true)) {
+            if (DBG) P.w("Task is NOT in ready state");
+            throw new BadStateException();
+        }
+        mSyncRun = true;
+        try {
             postToOwner(new Runnable() {
                 @Override
                 public void run() {
                     onStarted();
                 }
             });
+        } finally {
+            endPosting();
         }
         bgRun();
         if (null != getException())
@@ -468,6 +728,39 @@ public abstract class ThreadEx<ResultT> {
         return getResult();
     }
 
+    /**
+     * Set executor used by tasks created after this call, if executor is not explicitly given.
+     * @param executor 'null' means "new thread per task".
+     */
+    public static void
+    setDefaultExecutor(Executor executor) {
+        sDefaultExecutor = executor;
+    }
+
+    public static Executor
+    getDefaultExecutor() {
+        return sDefaultExecutor;
+    }
+
+    /**
+     * Executor can be changed only before task is started.
+     * This SHOULD NOT be called at the same time with {@link #start()}.
+     * @param executor 'null' means "new thread per task".
+     * @return 'false' if task is already started.
+     */
+    public final boolean
+    setExecutor(Executor executor) {
+        if (!isReady())
+            return false;
+        mExecutor = executor;
+        return true;
+    }
+
+    public final Executor
+    getExecutor() {
+        return mExecutor;
+    }
+
     public final long
     getId() {
         return mId;
@@ -492,25 +785,23 @@ public abstract class ThreadEx<ResultT> {
     @NotNull
     public final String
     getName() {
-        return mThread.getName();
+        return mName;
     }
 
     public final void
     setName(@NotNull String name) {
-        mThread.setName(name);
+        mName = name;
     }
 
     public int
     getPriority() {
-        return mThread.getPriority();
+        return mPriority;
     }
 
     @NotNull
     public final State
     getState() {
-        synchronized (mStateLock) {
-            return getStateLocked();
-        }
+        return sStates[mState.get() & ST_MASK];
     }
 
     /**
@@ -535,10 +826,9 @@ public abstract class ThreadEx<ResultT> {
      */
     public final boolean
     isActive() {
-        synchronized (mStateLock) {
-            return State.STARTED == getStateLocked()
-                    || State.CANCELLING == getStateLocked();
-        }
+        return 0 != ((stateBit(State.STARTED)
+                      | stateBit(State.CANCELLING))
+                     & stateBit(getState()));
     }
 
     /**
@@ -546,12 +836,11 @@ public abstract class ThreadEx<ResultT> {
      */
     public final boolean
     isDone() {
-        synchronized (mStateLock) {
-            return State.DONE == getStateLocked()
-                    || State.CANCELLED == getStateLocked()
-                    || State.TERMINATED == getStateLocked()
-                    || State.TERMINATED_CANCELLED == getStateLocked();
-        }
+        return 0 != ((stateBit(State.DONE)
+                      | stateBit(State.CANCELLED)
+                      | stateBit(State.TERMINATED)
+                      | stateBit(State.TERMINATED_CANCELLED))
+                     & stateBit(getState()));
     }
 
     /**
@@ -560,11 +849,10 @@ public abstract class ThreadEx<ResultT> {
      */
     public final boolean
     isCancel() {
-        synchronized (mStateLock) {
-            return State.CANCELLING == getStateLocked()
-                    || State.CANCELLED == getStateLocked()
-                    || State.TERMINATED_CANCELLED == getStateLocked();
-        }
+        return 0 != ((stateBit(State.CANCELLING)
+                      | stateBit(State.CANCELLED)
+                      | stateBit(State.TERMINATED_CANCELLED))
+                     & stateBit(getState()));
     }
 
     public final boolean
@@ -574,10 +862,9 @@ public abstract class ThreadEx<ResultT> {
 
     public final boolean
     isTerminated() {
-        synchronized (mStateLock) {
-            return State.TERMINATED == getStateLocked()
-                   || State.TERMINATED_CANCELLED == getStateLocked();
-        }
+        return 0 != ((stateBit(State.TERMINATED)
+                      | stateBit(State.TERMINATED_CANCELLED))
+                     & stateBit(getState()));
     }
 
     @NotNull
@@ -598,7 +885,9 @@ public abstract class ThreadEx<ResultT> {
 
     public final boolean
     isInterrupted() {
-        return mThread.isInterrupted();
+        synchronized (mRunnerLock) {
+            return null != mRunner && mRunner.isInterrupted();
+        }
     }
 
     // ========================================================================
@@ -50,6 +50,8 @@ public abstract class TmTask<ResultT> extends Task<ResultT> {
     // Special member only for 'TaskManager(Base)' module.
     // Used on in 'Package Private' scope.
     private final AtomicReference<Object> mTmTag = new AtomicReference<>(null);
+    // Manager that task is added to. null if task is never added to manager.
+    private volatile TaskManagerBase mTm = null;
 
     ///////////////////////////////////////////////////////////////////////////
     //
@@ -77,6 +79,19 @@ public abstract class TmTask<ResultT> extends Task<ResultT> {
         return mTmTag.get();
     }
 
+    final void
+    setManager(TaskManagerBase tm) {
+        mTm = tm;
+    }
+
+    /**
+     * @return Manager that task is added to at last. null if task is never added.
+     */
+    final TaskManagerBase
+    getManager() {
+        return mTm;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     //
     // Builder
@@ -63,7 +63,12 @@ public class TmTaskGroup extends TaskGroup {
     @Override
     protected boolean
     cancelTask(Task task, Object param) {
-        return mTm.cancelTask((TmTask)task, param);
+        if (mTm.cancelTask((TmTask)task, param))
+            return true;
+        // Sub-task is not handed to TaskManager yet (ex. waiting for max-parallel slot).
+        //noinspection unchecked
+        return ThreadEx.State.READY == task.getState()
+               && task.cancel(param, false);
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -116,13 +121,13 @@ public class TmTaskGroup extends TaskGroup {
         @NotNull
         public TmTaskGroup
         create() {
-            return new TmTaskGroup(mName,
-                                   mOwner,
-                                   mTm,
-                                   (TmTask[])mTasks,
-                                   mStopOnException,
-                                   mPrepareDoAsync,
-                                   mFinalizeDoAsync);
+            return applyOptions(new TmTaskGroup(mName,
+                                                mOwner,
+                                                mTm,
+                                                (TmTask[])mTasks,
+                                                mStopOnException,
+                                                mPrepareDoAsync,
+                                                mFinalizeDoAsync));
         }
     }
 
@@ -136,4 +141,20 @@ public class TmTaskGroup extends TaskGroup {
         return mTm;
     }
 
+    /**
+     * See {@link TaskGroup#addTasks(Task[])}.
+     * Sub-tasks are run by {@link #getTaskManager()}. So, all of them SHOULD be {@link TmTask}.
+     * @throws IllegalArgumentException if one of {@code tasks} is not {@link TmTask}.
+     *         Nothing is added in this case.
+     */
+    @Override
+    public boolean
+    addTasks(@NotNull Task[] tasks) {
+        for (Task t : tasks) {
+            if (!(t instanceof TmTask))
+                throw new IllegalArgumentException("Not a TmTask: " + t.getUniqueName());
+        }
+        return super.addTasks(tasks);
+    }
+
 }
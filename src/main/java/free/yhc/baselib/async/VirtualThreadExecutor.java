@@ -0,0 +1,125 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import free.yhc.baselib.Logger;
+
+/**
+ * Executor running each background job on new virtual thread.
+ * This is useful for tasks that spend most of time on blocking I/O (ex. NetReadTask).
+ *
+ * Virtual thread is available only at Java SE 21 and above.
+ * This library should be usable at Android and old Java SE, too. So, virtual thread executor is
+ *   looked up by reflection. If it is NOT available, job runs on new platform thread - same as
+ *   "new thread per task".
+ *
+ * Interrupting virtual thread works in the same way as platform thread.
+ * So, {@link ThreadEx#cancel(boolean)} with interrupt works as it is.
+ */
+public class VirtualThreadExecutor implements Executor {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(VirtualThreadExecutor.class, Logger.LOGLV_DEFAULT);
+
+    private static VirtualThreadExecutor sInstance = null;
+
+    // null if virtual thread is NOT supported.
+    private final Executor mExecutor;
+    // Sequence of fallback platform threads. Used for thread name.
+    private final AtomicInteger mThreadSeq = new AtomicInteger(0);
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    //
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    private static Executor
+    lookupVirtualThreadExecutor() {
+        try {
+            Method m = java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor)m.invoke(null);
+        } catch (Exception e) {
+            if (DBG) P.i("Virtual thread is NOT supported: " + e.getClass().getSimpleName());
+            return null;
+        }
+    }
+
+    private VirtualThreadExecutor() {
+        mExecutor = lookupVirtualThreadExecutor();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Public interfaces
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    @NotNull
+    public static synchronized VirtualThreadExecutor
+    get() {
+        if (null == sInstance)
+            sInstance = new VirtualThreadExecutor();
+        return sInstance;
+    }
+
+    /**
+     * @return false if jobs run on platform thread because virtual thread is NOT supported.
+     */
+    public boolean
+    isVirtual() {
+        return null != mExecutor;
+    }
+
+    @Override
+    public void
+    execute(@NotNull Runnable r) {
+        if (null != mExecutor) {
+            mExecutor.execute(r);
+            return;
+        }
+        // Daemon like virtual thread.
+        Thread t = new Thread(r, VirtualThreadExecutor.class.getSimpleName()
+                                 + "-fallback-" + mThreadSeq.getAndIncrement());
+        t.setDaemon(true);
+        t.start();
+    }
+}
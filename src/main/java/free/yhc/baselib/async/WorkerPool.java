@@ -0,0 +1,170 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import free.yhc.baselib.Logger;
+
+/**
+ * Executor re-using worker threads for background jobs of {@link ThreadEx}.
+ *
+ * Job is NEVER queued.
+ * {@link ThreadEx#start()} means "background job starts now", and some tasks (ex. TaskGroup)
+ *   wait for other tasks on their worker thread.
+ * Queuing job may lead to dead-lock. So, if all workers are busy, job runs on new dedicated
+ *   thread that is not kept in the pool.
+ */
+public class WorkerPool implements Executor {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(WorkerPool.class, Logger.LOGLV_DEFAULT);
+
+    public static final int DEFAULT_MAX_WORKERS = 64;
+    public static final long DEFAULT_KEEP_ALIVE = 30 * 1000; // 30 sec
+
+    private final String mName;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicInteger mThreadSeq = new AtomicInteger(0);
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    //
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    private class WorkerFactory implements ThreadFactory {
+        @Override
+        public Thread
+        newThread(@NotNull Runnable r) {
+            return newWorker(r, mName + "-" + mThreadSeq.getAndIncrement());
+        }
+    }
+
+    private class OverflowHandler implements RejectedExecutionHandler {
+        @Override
+        public void
+        rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (DBG) P.v(mName + ": All workers are busy. Run on dedicated thread");
+            newWorker(r, mName + "-overflow-" + mThreadSeq.getAndIncrement()).start();
+        }
+    }
+
+    /**
+     * Workers are daemon. Idle pool SHOULD NOT keep process alive.
+     */
+    @NotNull
+    private static Thread
+    newWorker(@NotNull Runnable r, @NotNull String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    //
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * @param name Prefix of worker thread name.
+     * @param maxWorkers Maximum number of threads kept in the pool.
+     * @param keepAlive Idle worker is terminated after this time(ms).
+     */
+    public WorkerPool(@NotNull String name,
+                      int maxWorkers,
+                      long keepAlive) {
+        P.bug(maxWorkers > 0 && keepAlive >= 0);
+        mName = name;
+        mExecutor = new ThreadPoolExecutor(0,
+                                           maxWorkers,
+                                           keepAlive,
+                                           TimeUnit.MILLISECONDS,
+                                           new SynchronousQueue<Runnable>(),
+                                           new WorkerFactory(),
+                                           new OverflowHandler());
+    }
+
+    public WorkerPool() {
+        this(WorkerPool.class.getSimpleName(), DEFAULT_MAX_WORKERS, DEFAULT_KEEP_ALIVE);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Public interfaces
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    @Override
+    public void
+    execute(@NotNull Runnable r) {
+        mExecutor.execute(r);
+    }
+
+    public int
+    getMaxWorkers() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return Number of threads in the pool. Dedicated threads for overflowed jobs are not counted.
+     */
+    public int
+    getWorkerCount() {
+        return mExecutor.getPoolSize();
+    }
+
+    /**
+     * Idle workers are terminated immediately, and busy workers are terminated after their job.
+     * Jobs requested after shutdown are rejected.
+     * (ThreadEx runs rejected job on new dedicated thread.)
+     */
+    public void
+    shutdown() {
+        mExecutor.shutdown();
+    }
+
+    public boolean
+    isShutdown() {
+        return mExecutor.isShutdown();
+    }
+}
@@ -150,14 +150,14 @@ public class NetDownloadTask extends NetReadTask {
         public NetDownloadTask
         create() {
             try {
-                return new NetDownloadTask(mName,
-                                           mOwner,
-                                           mNetConn,
-                                           mTmpFile,
-                                           mOutfile,
-                                           mBufferSize,
-                                           mPriority,
-                                           mInterruptOnCancel);
+                return applyOptions(new NetDownloadTask(mName,
+                                                        mOwner,
+                                                        mNetConn,
+                                                        mTmpFile,
+                                                        mOutfile,
+                                                        mBufferSize,
+                                                        mPriority,
+                                                        mInterruptOnCancel));
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
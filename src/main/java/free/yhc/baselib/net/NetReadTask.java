@@ -163,13 +163,13 @@ public class NetReadTask extends TmTask<NetReadTask.Result> {
         @NotNull
         public NetReadTask
         create() {
-            return new NetReadTask(mName,
-                                   mOwner,
-                                   mNetConn,
-                                   mOstream,
-                                   mBufferSize,
-                                   mPriority,
-                                   mInterruptOnCancel);
+            return applyOptions(new NetReadTask(mName,
+                                                mOwner,
+                                                mNetConn,
+                                                mOstream,
+                                                mBufferSize,
+                                                mPriority,
+                                                mInterruptOnCancel));
         }
     }
 
@@ -0,0 +1,239 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+package free.yhc.baselib.adapter.javase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JLooperHandlerAdapterTest {
+    private static final long TIMEOUT = 10; // seconds
+
+    private static class Count implements Runnable {
+        final AtomicInteger n = new AtomicInteger(0);
+
+        @Override
+        public void
+        run() {
+            n.incrementAndGet();
+        }
+    }
+
+    private static void
+    await(CountDownLatch latch) throws InterruptedException {
+        assertTrue("Timed out", latch.await(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Post Runnable blocking loop until {@code release} is counted down.
+     */
+    private static void
+    block(JLooperHandlerAdapter h, final CountDownLatch release) throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        assertTrue(h.post(new Runnable() {
+            @Override
+            public void
+            run() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) { }
+            }
+        }));
+        await(blocked);
+    }
+
+    @Test
+    public void
+    runInOrderWithEveryIdleStrategy() throws InterruptedException {
+        for (JLooperHandlerAdapter.IdleStrategy is : JLooperHandlerAdapter.IdleStrategy.values()) {
+            final JLooperHandlerAdapter h = new JLooperHandlerAdapter("looper", true, is, 8);
+            final List<Integer> ran = new ArrayList<>();
+            final AtomicBoolean onLoopThread = new AtomicBoolean(true);
+            for (int i = 0; i < 1000; i++) {
+                final int v = i;
+                assertTrue(h.post(new Runnable() {
+                    @Override
+                    public void
+                    run() {
+                        if (Thread.currentThread() != h.getThread())
+                            onLoopThread.set(false);
+                        ran.add(v);
+                    }
+                }));
+                if (0 == i % 100)
+                    // Let loop thread go idle in the middle.
+                    Thread.sleep(1);
+            }
+            h.quitSafely();
+            assertTrue(h.awaitTermination(TIMEOUT, TimeUnit.SECONDS));
+            assertTrue(is.name(), onLoopThread.get());
+            assertEquals(is.name(), 1000, ran.size());
+            for (int i = 0; i < ran.size(); i++)
+                assertEquals(is.name(), i, (int)ran.get(i));
+        }
+    }
+
+    @Test
+    public void
+    quitSafelyRunsPending() throws InterruptedException {
+        JLooperHandlerAdapter h = new JLooperHandlerAdapter("looper", true,
+                JLooperHandlerAdapter.IdleStrategy.PARK, 4);
+        CountDownLatch release = new CountDownLatch(1);
+        Count c = new Count();
+        block(h, release);
+        for (int i = 0; i < 10; i++)
+            assertTrue(h.post(c));
+        h.quitSafely();
+        assertTrue(h.isQuitting());
+        assertFalse(h.post(c));
+        release.countDown();
+        assertTrue(h.awaitTermination(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(10, c.n.get());
+    }
+
+    @Test
+    public void
+    quitDiscardsPending() throws InterruptedException {
+        JLooperHandlerAdapter h = new JLooperHandlerAdapter("looper", true,
+                JLooperHandlerAdapter.IdleStrategy.PARK, 4);
+        CountDownLatch release = new CountDownLatch(1);
+        Count c = new Count();
+        block(h, release);
+        for (int i = 0; i < 10; i++)
+            assertTrue(h.post(c));
+        // quit() overrides quitSafely(), but not vice versa.
+        h.quitSafely();
+        h.quit();
+        h.quitSafely();
+        assertFalse(h.post(c));
+        release.countDown();
+        assertTrue(h.awaitTermination(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(0, c.n.get());
+    }
+
+    /**
+     * Runnables accepted before quitSafely() SHOULD be run, even if other threads keep posting.
+     */
+    @Test
+    public void
+    postRacingQuit() throws InterruptedException {
+        final JLooperHandlerAdapter h = new JLooperHandlerAdapter("looper", true,
+                JLooperHandlerAdapter.IdleStrategy.SPIN_THEN_PARK, 16);
+        final Count c = new Count();
+        final AtomicInteger accepted = new AtomicInteger(0);
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] producers = new Thread[4];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread() {
+                @Override
+                public void
+                run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (h.post(c))
+                        accepted.incrementAndGet();
+                }
+            };
+            producers[i].start();
+        }
+        Count mine = new Count();
+        go.countDown();
+        for (int i = 0; i < 1000; i++)
+            assertTrue(h.post(mine));
+        h.quitSafely();
+        for (Thread t : producers) {
+            t.join(TIMEOUT * 1000);
+            assertFalse(t.isAlive());
+        }
+        assertTrue(h.awaitTermination(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(1000, mine.n.get());
+        // Runnable posted at the same moment with quit request, may be discarded.
+        assertTrue(c.n.get() <= accepted.get());
+        assertFalse(h.post(c));
+    }
+
+    @Test
+    public void
+    exceptionDoesNotStopLoop() throws InterruptedException {
+        JLooperHandlerAdapter h = new JLooperHandlerAdapter("looper", true,
+                JLooperHandlerAdapter.IdleStrategy.PARK, 4);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean sameThread = new AtomicBoolean(false);
+        final Thread loopThread = h.getThread();
+        assertTrue(h.post(new Runnable() {
+            @Override
+            public void
+            run() {
+                throw new IllegalStateException("test");
+            }
+        }));
+        assertTrue(h.post(new Runnable() {
+            @Override
+            public void
+            run() {
+                throw new AssertionError("test");
+            }
+        }));
+        assertTrue(h.post(new Runnable() {
+            @Override
+            public void
+            run() {
+                sameThread.set(Thread.currentThread() == loopThread);
+                done.countDown();
+            }
+        }));
+        await(done);
+        assertTrue(sameThread.get());
+        assertTrue(loopThread.isAlive());
+        assertSame(loopThread, h.getThread());
+        h.quit();
+        assertTrue(h.awaitTermination(TIMEOUT, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,252 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventPublisherTest {
+    /**
+     * Records callbacks. Events are delivered at publishing/requesting thread (no executor).
+     */
+    private static class Recorder implements EventPublisher.Subscriber<Integer> {
+        final List<Integer> items = new ArrayList<>();
+        final CountDownLatch terminated = new CountDownLatch(1);
+        EventPublisher.Subscription subscription = null;
+        boolean completed = false;
+        Throwable error = null;
+
+        @Override
+        public synchronized void
+        onSubscribe(@NotNull EventPublisher.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public synchronized void
+        onNext(@NotNull Integer item) {
+            items.add(item);
+        }
+
+        @Override
+        public synchronized void
+        onError(@NotNull Throwable throwable) {
+            error = throwable;
+            terminated.countDown();
+        }
+
+        @Override
+        public synchronized void
+        onComplete() {
+            completed = true;
+            terminated.countDown();
+        }
+
+        synchronized String
+        itemsString() {
+            return items.toString();
+        }
+    }
+
+    @BeforeClass
+    public static void
+    setUpClass() {
+        TestEnv.owner();
+    }
+
+    private static void
+    publish(@NotNull EventPublisher<Integer> pub, int from, int to) {
+        for (int i = from; i <= to; i++)
+            pub.publish(i);
+    }
+
+    @Test
+    public void
+    deliveredByDemand() {
+        EventPublisher<Integer> pub = new EventPublisher<>();
+        Recorder r = new Recorder();
+        pub.subscribe(r);
+        publish(pub, 1, 5);
+        assertEquals("[]", r.itemsString());
+        r.subscription.request(2);
+        assertEquals("[1, 2]", r.itemsString());
+        r.subscription.request(10);
+        assertEquals("[1, 2, 3, 4, 5]", r.itemsString());
+        publish(pub, 6, 6);
+        assertEquals("[1, 2, 3, 4, 5, 6]", r.itemsString());
+        assertEquals(0, pub.getDroppedCount());
+    }
+
+    @Test
+    public void
+    overflowDropOldest() {
+        EventPublisher<Integer> pub = new EventPublisher<>();
+        Recorder r = new Recorder();
+        pub.subscribe(r, 2, EventPublisher.Overflow.DROP_OLDEST, null);
+        publish(pub, 1, 5);
+        r.subscription.request(Long.MAX_VALUE);
+        assertEquals("[4, 5]", r.itemsString());
+        assertEquals(3, pub.getDroppedCount());
+    }
+
+    @Test
+    public void
+    overflowDropLatest() {
+        EventPublisher<Integer> pub = new EventPublisher<>();
+        Recorder r = new Recorder();
+        pub.subscribe(r, 2, EventPublisher.Overflow.DROP_LATEST, null);
+        publish(pub, 1, 5);
+        r.subscription.request(Long.MAX_VALUE);
+        assertEquals("[1, 2]", r.itemsString());
+        assertEquals(3, pub.getDroppedCount());
+    }
+
+    @Test
+    public void
+    slowSubscriberDoesNotBlockOthers() {
+        EventPublisher<Integer> pub = new EventPublisher<>();
+        Recorder slow = new Recorder();
+        Recorder fast = new Recorder();
+        pub.subscribe(slow, 1, EventPublisher.Overflow.DROP_OLDEST, null);
+        pub.subscribe(fast);
+        fast.subscription.request(Long.MAX_VALUE);
+        publish(pub, 1, 3);
+        assertEquals("[1, 2, 3]", fast.itemsString());
+        slow.subscription.request(1);
+        assertEquals("[3]", slow.itemsString());
+        assertEquals(2, pub.getDroppedCount());
+    }
+
+    @Test
+    public void
+    completeAfterBufferedEvents() {
+        EventPublisher<Integer> pub = new EventPublisher<>();
+        Recorder r = new Recorder();
+        pub.subscribe(r);
+        publish(pub, 1, 2);
+        pub.complete();
+        assertTrue(pub.isTerminated());
+        assertFalse(r.completed);
+        r.subscription.request(1);
+        assertFalse(r.completed);
+        r.subscription.request(1);
+        assertTrue(r.completed);
+        assertEquals("[1, 2]", r.itemsString());
+        assertEquals(0, pub.getSubscriberCount());
+        // Ignored after termination.
+        publish(pub, 3, 3);
+        // Late subscriber gets terminal callback only.
+        Recorder late = new Recorder();
+        pub.subscribe(late);
+        assertTrue(late.completed);
+    }
+
+    @Test
+    public void
+    fail() {
+        EventPublisher<Integer> pub = new EventPublisher<>();
+        Recorder r = new Recorder();
+        pub.subscribe(r);
+        r.subscription.request(Long.MAX_VALUE);
+        publish(pub, 1, 1);
+        IllegalStateException e = new IllegalStateException();
+        pub.fail(e);
+        assertEquals("[1]", r.itemsString());
+        assertSame(e, r.error);
+        assertFalse(r.completed);
+    }
+
+    @Test
+    public void
+    badRequest() {
+        EventPublisher<Integer> pub = new EventPublisher<>();
+        Recorder r = new Recorder();
+        pub.subscribe(r);
+        publish(pub, 1, 1);
+        r.subscription.request(0);
+        assertTrue(r.error instanceof IllegalArgumentException);
+        assertEquals("[]", r.itemsString());
+        assertEquals(0, pub.getSubscriberCount());
+    }
+
+    @Test
+    public void
+    cancel() {
+        EventPublisher<Integer> pub = new EventPublisher<>();
+        Recorder r = new Recorder();
+        pub.subscribe(r);
+        assertEquals(1, pub.getSubscriberCount());
+        r.subscription.request(Long.MAX_VALUE);
+        r.subscription.cancel();
+        assertEquals(0, pub.getSubscriberCount());
+        publish(pub, 1, 1);
+        pub.complete();
+        assertEquals("[]", r.itemsString());
+        assertFalse(r.completed);
+        assertNull(r.error);
+    }
+
+    @Test
+    public void
+    deliveredAtExecutorInOrder() throws InterruptedException {
+        Executor executor = new WorkerPool("test-publisher", 4, 1000);
+        EventPublisher<Integer> pub = new EventPublisher<>();
+        Recorder r = new Recorder();
+        pub.subscribe(r, 1000, EventPublisher.Overflow.DROP_LATEST, executor);
+        r.subscription.request(Long.MAX_VALUE);
+        publish(pub, 0, 999);
+        pub.complete();
+        TestEnv.await(r.terminated);
+        synchronized (r) {
+            assertTrue(r.completed);
+            assertEquals(1000, r.items.size());
+            for (int i = 0; i < 1000; i++)
+                assertEquals(Integer.valueOf(i), r.items.get(i));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+package free.yhc.baselib.async;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import free.yhc.baselib.adapter.HandlerAdapter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StripedTaskManagerTest {
+    private static HandlerAdapter sOwner;
+
+    private static class Job extends TmTask<Integer> {
+        private final List<String> mLog;
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        private final CountDownLatch mRelease;
+
+        Job(String name, int priority, List<String> log, CountDownLatch release) {
+            super(name, sOwner, priority, false);
+            mLog = log;
+            mRelease = release;
+        }
+
+        @Override
+        protected Integer
+        doAsync() throws InterruptedException {
+            synchronized (mLog) {
+                mLog.add(getName());
+            }
+            mStarted.countDown();
+            if (null != mRelease)
+                TestEnv.await(mRelease);
+            return 0;
+        }
+    }
+
+    @BeforeClass
+    public static void
+    setUpClass() {
+        sOwner = TestEnv.owner();
+    }
+
+    @After
+    public void
+    tearDown() {
+        TestEnv.checkUncaught();
+    }
+
+    /**
+     * Run 'low' and 'high' on single slot, after 'low' waits {@code waitms} in ready Q.
+     * @return names of tasks in the order they are started.
+     */
+    private List<String>
+    runLowAndHigh(long aging, long waitms) throws InterruptedException {
+        StripedTaskManager tm = StripedTaskManager.create(sOwner, 1, 4);
+        tm.setPriorityAging(aging);
+        List<String> log = new ArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        Job blocker = new Job("blocker", ThreadEx.TASK_PRIORITY_NORM, log, release);
+        Job low = new Job("low", ThreadEx.TASK_PRIORITY_MIN, log, null);
+        Job high = new Job("high", ThreadEx.TASK_PRIORITY_MAX, log, null);
+        assertTrue(tm.addTask(blocker));
+        TestEnv.await(blocker.mStarted);
+        assertTrue(tm.addTask(low));
+        Thread.sleep(waitms);
+        assertTrue(tm.addTask(high));
+        release.countDown();
+        TestEnv.await(low.mStarted);
+        TestEnv.await(high.mStarted);
+        synchronized (log) {
+            return new ArrayList<>(log);
+        }
+    }
+
+    @Test
+    public void
+    priorityAcrossStripes() throws InterruptedException {
+        List<String> log = runLowAndHigh(0, 50);
+        assertEquals("high", log.get(1));
+        assertEquals("low", log.get(2));
+    }
+
+    @Test
+    public void
+    priorityAging() throws InterruptedException {
+        // 'low' is aged by more than (MAX - MIN) before 'high' is added.
+        List<String> log = runLowAndHigh(10, 300);
+        assertEquals("low", log.get(1));
+        assertEquals("high", log.get(2));
+    }
+
+    @Test
+    public void
+    concurrencyLimitRebalances() throws InterruptedException {
+        StripedTaskManager tm = StripedTaskManager.create(sOwner, 3, 4);
+        tm.setConcurrencyLimit(new ConcurrencyLimit.Aimd(1, 1, 1));
+        List<String> log = new ArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        Job blocker = new Job("blocker", ThreadEx.TASK_PRIORITY_NORM, log, release);
+        Job j0 = new Job("j0", ThreadEx.TASK_PRIORITY_NORM, log, null);
+        Job j1 = new Job("j1", ThreadEx.TASK_PRIORITY_NORM, log, null);
+        assertTrue(tm.addTask(blocker));
+        try {
+            TestEnv.await(blocker.mStarted);
+            assertTrue(tm.addTask(j0));
+            assertTrue(tm.addTask(j1));
+            assertEquals(ThreadEx.State.READY, j0.getState());
+            // Raising limit SHOULD start waiting tasks, while 'blocker' is still running.
+            tm.setConcurrencyLimit(null);
+            TestEnv.await(j0.mStarted);
+            TestEnv.await(j1.mStarted);
+        } finally {
+            release.countDown();
+        }
+    }
+}
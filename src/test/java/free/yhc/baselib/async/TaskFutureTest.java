@@ -0,0 +1,207 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import free.yhc.baselib.adapter.HandlerAdapter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TaskFutureTest {
+    private static HandlerAdapter sOwner;
+
+    private static class Job extends TmTask<Integer> {
+        final CountDownLatch started = new CountDownLatch(1);
+        private final int mResult;
+        private final CountDownLatch mRelease;
+
+        Job(int result, CountDownLatch release) {
+            super("job" + result, sOwner, ThreadEx.TASK_PRIORITY_NORM, false);
+            mResult = result;
+            mRelease = release;
+        }
+
+        @Override
+        protected Integer
+        doAsync() throws Exception {
+            started.countDown();
+            if (null != mRelease)
+                TestEnv.await(mRelease);
+            if (mResult < 0)
+                throw new IllegalStateException("fail");
+            return mResult;
+        }
+    }
+
+    @BeforeClass
+    public static void
+    setUpClass() {
+        sOwner = TestEnv.owner();
+    }
+
+    @After
+    public void
+    tearDown() {
+        TestEnv.checkUncaught();
+    }
+
+    @Test
+    public void
+    then() throws Exception {
+        Job j = new Job(1, null);
+        TaskFuture<Integer> f = j.toFuture().then(new TaskFuture.Next<Integer, Integer>() {
+            @NotNull
+            @Override
+            public TaskFuture<Integer>
+            next(Integer result) {
+                Job n = new Job(result + 1, null);
+                n.start();
+                return n.toFuture();
+            }
+        });
+        assertTrue(j.start());
+        assertEquals(2, (int)f.get(TestEnv.TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void
+    thenPassesException() throws Exception {
+        Job j = new Job(-1, null);
+        final AtomicBoolean called = new AtomicBoolean(false);
+        TaskFuture<Integer> f = j.toFuture().then(new TaskFuture.Next<Integer, Integer>() {
+            @NotNull
+            @Override
+            public TaskFuture<Integer>
+            next(Integer result) {
+                called.set(true);
+                throw new AssertionError();
+            }
+        });
+        assertTrue(j.start());
+        try {
+            f.get(TestEnv.TIMEOUT, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertFalse(called.get());
+    }
+
+    /**
+     * Listener of composed future SHOULD NOT be run with lock of preceding future.
+     */
+    @Test
+    public void
+    thenCompletesOutOfLock() throws Exception {
+        final Job j = new Job(-1, null);
+        TaskFuture<Integer> f = j.toFuture().then(new TaskFuture.Next<Integer, Integer>() {
+            @NotNull
+            @Override
+            public TaskFuture<Integer>
+            next(Integer result) {
+                throw new AssertionError();
+            }
+        });
+        final AtomicBoolean blocked = new AtomicBoolean(true);
+        final CountDownLatch done = new CountDownLatch(1);
+        f.addListener(new TaskFuture.Listener<Integer>() {
+            @Override
+            public void
+            onDone(@NotNull TaskFuture<Integer> future) {
+                // Other thread accessing preceding future.
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void
+                    run() {
+                        j.toFuture().isDone();
+                    }
+                });
+                t.start();
+                try {
+                    t.join(1000);
+                } catch (InterruptedException ignored) { }
+                blocked.set(t.isAlive());
+                done.countDown();
+            }
+        });
+        assertTrue(j.start());
+        TestEnv.await(done);
+        assertFalse(blocked.get());
+    }
+
+    /**
+     * Task waiting in ready Q SHOULD be removed from TaskManager when it's future is cancelled.
+     */
+    @Test
+    public void
+    cancelTaskInTaskManager() throws Exception {
+        TaskManagerBase tm = TaskManagerBase.create(sOwner, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        Job blocker = new Job(0, release);
+        Job j = new Job(1, null);
+        assertTrue(tm.addTask(blocker));
+        try {
+            TestEnv.await(blocker.started);
+            assertTrue(tm.addTask(j));
+            assertSame(TaskManagerBase.TaskQType.READY, tm.contains(j));
+            assertTrue(j.toFuture().cancel(false));
+            assertTrue(j.toFuture().isCancelled());
+            assertNull(tm.contains(j));
+        } finally {
+            release.countDown();
+        }
+        assertEquals(0, (int)blocker.toFuture().get(TestEnv.TIMEOUT, TimeUnit.SECONDS));
+        // Manager is still working.
+        Job j2 = new Job(2, null);
+        assertTrue(tm.addTask(j2));
+        assertEquals(2, (int)j2.toFuture().get(TestEnv.TIMEOUT, TimeUnit.SECONDS));
+        TestEnv.syncOwner();
+    }
+}
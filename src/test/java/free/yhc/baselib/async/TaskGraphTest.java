@@ -0,0 +1,161 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import free.yhc.baselib.adapter.HandlerAdapter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TaskGraphTest {
+    private static HandlerAdapter sOwner;
+
+    private static class Node extends Task<Integer> {
+        Node(String name) {
+            super(name, sOwner, ThreadEx.TASK_PRIORITY_NORM, false);
+        }
+
+        @Override
+        protected Integer
+        doAsync() {
+            return 0;
+        }
+    }
+
+    private static class Waiter extends TaskBase.EventListener<TaskGraph, Task> {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Task> result = new AtomicReference<>(null);
+
+        @Override
+        public void
+        onPostRun(@NotNull TaskGraph g, Task res, Exception ex) {
+            result.set(res);
+            done.countDown();
+        }
+    }
+
+    @NotNull
+    private static TaskGraph
+    newGraph() {
+        return new TaskGraph.Builder<>()
+                .setOwner(sOwner)
+                .create();
+    }
+
+    @NotNull
+    private static Task
+    run(@NotNull TaskGraph g) throws Exception {
+        Waiter w = new Waiter();
+        //noinspection unchecked
+        g.addEventListener(w);
+        assertTrue(g.start());
+        TestEnv.await(w.done);
+        return w.result.get();
+    }
+
+    @BeforeClass
+    public static void
+    setUpClass() {
+        sOwner = TestEnv.owner();
+    }
+
+    @After
+    public void
+    tearDown() {
+        TestEnv.checkUncaught();
+    }
+
+    @Test
+    public void
+    emptyGraph() throws Exception {
+        // Graph is completed while worker is returning from doAsync().
+        for (int i = 0; i < 500; i++) {
+            TaskGraph g = newGraph();
+            Waiter w = new Waiter();
+            //noinspection unchecked
+            g.addEventListener(w);
+            assertTrue(g.start());
+            TestEnv.await(w.done);
+            assertNull(w.result.get());
+        }
+    }
+
+    @Test
+    public void
+    dependencyOrder() throws Exception {
+        TaskGraph g = newGraph();
+        Node a = new Node("a");
+        Node b = new Node("b");
+        Node c = new Node("c");
+        assertTrue(g.addTask(a));
+        assertTrue(g.addTask(b, a));
+        assertTrue(g.addTask(c, a, b));
+        assertNull(run(g));
+        TestEnv.syncOwner();
+        for (Node n : new Node[] { a, b, c })
+            assertEquals(ThreadEx.State.TERMINATED, n.getState());
+    }
+
+    @Test
+    public void
+    nodeNotReady() throws Exception {
+        // Node that can be neither started nor cancelled (already finished).
+        Node done = new Node("done");
+        assertEquals(Integer.valueOf(0), done.startSync());
+        TestEnv.syncOwner();
+        TaskGraph g = newGraph();
+        Node dependent = new Node("dependent");
+        Node other = new Node("other");
+        assertTrue(g.addTask(done));
+        assertTrue(g.addTask(dependent, done));
+        assertTrue(g.addTask(other));
+        assertSame(done, run(g));
+        TestEnv.syncOwner();
+        assertTrue(dependent.isCancel());
+        assertEquals(ThreadEx.State.TERMINATED, other.getState());
+    }
+}
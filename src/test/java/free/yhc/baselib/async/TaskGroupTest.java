@@ -0,0 +1,301 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import free.yhc.baselib.adapter.HandlerAdapter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TaskGroupTest {
+    private static HandlerAdapter sOwner;
+
+    /**
+     * Succeeds after {@code sleep} ms, fails if {@code fail}, or blocks until it is interrupted
+     *   if {@code sleep} < 0.
+     */
+    private static class Job extends Task<Integer> {
+        private final long mSleep;
+        private final boolean mFail;
+        private final AtomicInteger mRunning;
+        private final AtomicInteger mMaxRunning;
+
+        Job(long sleep, boolean fail, AtomicInteger running, AtomicInteger maxRunning) {
+            super("Job", sOwner, ThreadEx.TASK_PRIORITY_NORM, true);
+            mSleep = sleep;
+            mFail = fail;
+            mRunning = running;
+            mMaxRunning = maxRunning;
+        }
+
+        Job(long sleep, boolean fail) {
+            this(sleep, fail, new AtomicInteger(0), new AtomicInteger(0));
+        }
+
+        @Override
+        protected Integer
+        doAsync() throws Exception {
+            int n = mRunning.incrementAndGet();
+            try {
+                int max;
+                while (n > (max = mMaxRunning.get())
+                       && !mMaxRunning.compareAndSet(max, n)) { }
+                if (mSleep < 0)
+                    new CountDownLatch(1).await();
+                Thread.sleep(mSleep);
+                if (mFail)
+                    throw new IllegalStateException("fail");
+                return 0;
+            } finally {
+                mRunning.decrementAndGet();
+            }
+        }
+    }
+
+    private static class Waiter extends TaskBase.EventListener<TaskGroup, Task> {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Task> result = new AtomicReference<>(null);
+
+        @Override
+        public void
+        onPostRun(@NotNull TaskGroup tg, Task res, Exception ex) {
+            result.set(res);
+            done.countDown();
+        }
+    }
+
+    @BeforeClass
+    public static void
+    setUpClass() {
+        sOwner = TestEnv.owner();
+    }
+
+    @After
+    public void
+    tearDown() {
+        TestEnv.checkUncaught();
+    }
+
+    @NotNull
+    private static Waiter
+    run(@NotNull TaskGroup tg) throws InterruptedException {
+        Waiter w = new Waiter();
+        //noinspection unchecked
+        tg.addEventListener(sOwner, w);
+        assertTrue(tg.start());
+        TestEnv.await(w.done);
+        TestEnv.syncOwner();
+        return w;
+    }
+
+    @Test
+    public void
+    maxParallel() throws InterruptedException {
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        Task[] tasks = new Task[6];
+        for (int i = 0; i < tasks.length; i++)
+            tasks[i] = new Job(20, false, running, maxRunning);
+        TaskGroup tg = (TaskGroup)new TaskGroup.Builder<>()
+                .setTasks(tasks)
+                .setMaxParallel(2)
+                .setOwner(sOwner)
+                .create();
+        Waiter w = run(tg);
+        assertNull(w.result.get());
+        assertEquals(2, maxRunning.get());
+        for (Task t : tasks)
+            assertEquals(ThreadEx.State.TERMINATED, t.getState());
+    }
+
+    @Test
+    public void
+    quorumReached() throws InterruptedException {
+        Job blocked = new Job(-1, false);
+        Task[] tasks = new Task[] { new Job(0, false), blocked, new Job(0, false) };
+        TaskGroup tg = (TaskGroup)new TaskGroup.Builder<>()
+                .setTasks(tasks)
+                .setQuorum(2)
+                .setOwner(sOwner)
+                .create();
+        Waiter w = run(tg);
+        // Not waiting for blocked sub-task.
+        assertTrue(tg.isQuorumReached());
+        assertTrue(w.result.get() == tasks[0] || w.result.get() == tasks[2]);
+        assertTrue(blocked.isCancel());
+    }
+
+    @Test
+    public void
+    quorumUnreachable() throws InterruptedException {
+        Job blocked = new Job(-1, false);
+        Task[] tasks = new Task[] { new Job(0, true), blocked, new Job(0, true) };
+        TaskGroup tg = (TaskGroup)new TaskGroup.Builder<>()
+                .setTasks(tasks)
+                .setQuorum(2)
+                .setOwner(sOwner)
+                .create();
+        Waiter w = run(tg);
+        assertFalse(tg.isQuorumReached());
+        assertSame(ThreadEx.State.TERMINATED, w.result.get().getState());
+        assertTrue(w.result.get().getException() instanceof IllegalStateException);
+        assertTrue(blocked.isCancel());
+    }
+
+    @Test
+    public void
+    anyOfWithMaxParallel() throws InterruptedException {
+        // Sub-tasks after the first one are never started, and cancelled.
+        Task[] tasks = new Task[] { new Job(0, false), new Job(-1, false), new Job(-1, false) };
+        TaskGroup tg = (TaskGroup)new TaskGroup.Builder<>()
+                .setTasks(tasks)
+                .setQuorum(1)
+                .setMaxParallel(1)
+                .setOwner(sOwner)
+                .create();
+        Waiter w = run(tg);
+        assertTrue(tg.isQuorumReached());
+        assertSame(tasks[0], w.result.get());
+        assertEquals(ThreadEx.State.TERMINATED_CANCELLED, tasks[1].getState());
+        assertEquals(ThreadEx.State.TERMINATED_CANCELLED, tasks[2].getState());
+    }
+
+    /**
+     * Streaming group adding sub-tasks while others finish, SHOULD NOT keep done sub-tasks.
+     */
+    @Test
+    public void
+    streamingDropsDoneSubTasks() throws InterruptedException {
+        final int total = 200;
+        final AtomicInteger added = new AtomicInteger(1);
+        final AtomicInteger rejected = new AtomicInteger(0);
+        final List<WeakReference<Task>> refs
+                = Collections.synchronizedList(new ArrayList<WeakReference<Task>>());
+        Task[] first = new Task[] { new Job(0, false) };
+        refs.add(new WeakReference<>(first[0]));
+        TaskGroup tg = (TaskGroup)new TaskGroup.Builder<>()
+                .setTasks(first)
+                .setMaxParallel(2)
+                .setChildDoneListener(new TaskGroup.ChildDoneListener() {
+                    @Override
+                    public void
+                    onChildDone(@NotNull TaskGroup tg, @NotNull Task task,
+                                Object result, Exception ex) {
+                        // Each done sub-task finds two more.
+                        for (int i = 0; i < 2 && added.get() < total; i++) {
+                            Task t = new Job(0, false);
+                            refs.add(new WeakReference<>(t));
+                            added.incrementAndGet();
+                            if (!tg.addTask(t))
+                                rejected.incrementAndGet();
+                        }
+                    }
+                })
+                .setOwner(sOwner)
+                .create();
+        //noinspection UnusedAssignment
+        first = null;
+        Waiter w = run(tg);
+        assertNull(w.result.get());
+        assertEquals(0, rejected.get());
+        assertEquals(total, refs.size());
+        assertEquals(0, tg.getTasks().length);
+        int alive = total;
+        for (int i = 0; i < 100 && alive > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+            alive = 0;
+            for (WeakReference<Task> r : refs) {
+                if (null != r.get())
+                    alive++;
+            }
+        }
+        assertEquals(0, alive);
+    }
+
+    /**
+     * Group cancelled without interrupt, SHOULD be finalized with InterruptedException in both
+     *   blocking and non-blocking mode.
+     */
+    @Test
+    public void
+    cancelWithoutInterrupt() throws InterruptedException {
+        for (boolean nonBlocking : new boolean[] { false, true }) {
+            final AtomicReference<Exception> finalEx = new AtomicReference<>(null);
+            final CountDownLatch finalized = new CountDownLatch(1);
+            Job blocked = new Job(-1, false);
+            TaskGroup tg = (TaskGroup)new TaskGroup.Builder<>()
+                    .setTasks(new Task[] { blocked })
+                    .setNonBlocking(nonBlocking)
+                    .setFinalizeDoAsync(new TaskGroup.FinalizeDoAsync() {
+                        @Override
+                        public void
+                        finalize(@NotNull TaskGroup tg, Task result, Exception ex) {
+                            finalEx.set(ex);
+                            finalized.countDown();
+                        }
+                    })
+                    .setOwner(sOwner)
+                    .create();
+            assertTrue(tg.start());
+            // Wait until sub-task is started.
+            long due = System.currentTimeMillis() + TestEnv.TIMEOUT * 1000;
+            while (ThreadEx.State.READY == blocked.getState()
+                   && System.currentTimeMillis() < due)
+                Thread.sleep(1);
+            assertTrue(tg.cancel(null, false));
+            TestEnv.await(finalized);
+            assertTrue("nonBlocking: " + nonBlocking,
+                       finalEx.get() instanceof InterruptedException);
+        }
+    }
+}
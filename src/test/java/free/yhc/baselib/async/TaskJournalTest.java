@@ -0,0 +1,316 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import free.yhc.baselib.adapter.HandlerAdapter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TaskJournalTest {
+    private static HandlerAdapter sOwner;
+
+    @Rule
+    public final TemporaryFolder mTmpDir = new TemporaryFolder();
+
+    private File mFile;
+    private TaskManager mTm;
+
+    private static class Job extends TmTask<Integer> {
+        Job(String name) {
+            super(name, sOwner, ThreadEx.TASK_PRIORITY_NORM, false);
+        }
+
+        @Override
+        protected Integer
+        doAsync() {
+            return 0;
+        }
+    }
+
+    /**
+     * Task name is used as descriptor. Restored descriptors are just recorded.
+     */
+    private static class Codec implements TaskJournal.Codec {
+        final List<String> restored = new ArrayList<>();
+        final List<Boolean> started = new ArrayList<>();
+
+        @Override
+        public byte[]
+        encode(@NotNull TaskManager tm, @NotNull TmTask task, @NotNull TaskManager.TaskInfo ti) {
+            return task.getName().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public boolean
+        restore(@NotNull TaskManager tm, @NotNull byte[] desc, boolean started) {
+            this.restored.add(new String(desc, StandardCharsets.UTF_8));
+            this.started.add(started);
+            return true;
+        }
+    }
+
+    @BeforeClass
+    public static void
+    setUpClass() {
+        sOwner = TestEnv.owner();
+    }
+
+    @Before
+    public void
+    setUp() throws IOException {
+        mFile = new File(mTmpDir.getRoot(), "journal");
+        mTm = TaskManager.create(sOwner, 1, 0, null);
+    }
+
+    @After
+    public void
+    tearDown() {
+        TestEnv.checkUncaught();
+    }
+
+    private long
+    add(@NotNull TaskJournal j, @NotNull String name) {
+        Job t = new Job(name);
+        return j.add(mTm, t, mTm.new TaskInfo(t, t, "type", null));
+    }
+
+    @NotNull
+    private List<String>
+    names(@NotNull TaskJournal.Entry[] es) {
+        List<String> l = new ArrayList<>();
+        for (TaskJournal.Entry e : es)
+            l.add(new String(e.desc, StandardCharsets.UTF_8));
+        return l;
+    }
+
+    @Test
+    public void
+    recoverUnfinished() throws IOException {
+        TaskJournal j = TaskJournal.open(mFile, new Codec());
+        add(j, "a");
+        long b = add(j, "b");
+        long c = add(j, "c");
+        long d = add(j, "d");
+        j.started(b);
+        j.finished(c, false);
+        j.finished(d, true);
+        assertEquals(2, j.size());
+        j.close();
+
+        j = TaskJournal.open(mFile, new Codec());
+        assertEquals(2, j.size());
+        TaskJournal.Entry[] es = j.takeRecoveringEntries();
+        assertEquals(2, es.length);
+        assertEquals("a", new String(es[0].desc, StandardCharsets.UTF_8));
+        assertFalse(es[0].isStarted());
+        assertEquals("b", new String(es[1].desc, StandardCharsets.UTF_8));
+        assertTrue(es[1].isStarted());
+        // Handed over only once.
+        assertEquals(0, j.takeRecoveringEntries().length);
+        j.close();
+    }
+
+    @Test
+    public void
+    recoverJournalOfTaskManager() throws IOException {
+        TaskJournal j = TaskJournal.open(mFile, new Codec());
+        add(j, "a");
+        add(j, "b");
+        j.close();
+
+        Codec codec = new Codec();
+        j = TaskJournal.open(mFile, codec);
+        mTm.setJournal(j);
+        assertEquals(2, mTm.recoverJournal());
+        assertEquals("[a, b]", codec.restored.toString());
+        // Old entries are dropped. (Codec doesn't add tasks again.)
+        assertEquals(0, j.size());
+        j.close();
+    }
+
+    @Test
+    public void
+    truncatedTail() throws IOException {
+        TaskJournal j = TaskJournal.open(mFile, new Codec());
+        add(j, "a");
+        add(j, "b");
+        j.close();
+        long len = mFile.length();
+        // Crash while writing the last record.
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(len - 3);
+        }
+
+        j = TaskJournal.open(mFile, new Codec());
+        assertEquals("[a]", names(j.takeRecoveringEntries()).toString());
+        // Broken record is cut off. So, records appended after it are readable.
+        add(j, "c");
+        j.close();
+
+        j = TaskJournal.open(mFile, new Codec());
+        assertEquals("[a, c]", names(j.takeRecoveringEntries()).toString());
+        j.close();
+    }
+
+    @Test
+    public void
+    corruptedTail() throws IOException {
+        TaskJournal j = TaskJournal.open(mFile, new Codec());
+        add(j, "a");
+        add(j, "b");
+        j.close();
+        long len = mFile.length();
+        // Last byte is descriptor of 'b'.
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(len - 1);
+            raf.write('x');
+        }
+
+        j = TaskJournal.open(mFile, new Codec());
+        assertEquals("[a]", names(j.takeRecoveringEntries()).toString());
+        assertTrue(mFile.length() < len);
+        add(j, "c");
+        j.close();
+
+        j = TaskJournal.open(mFile, new Codec());
+        assertEquals("[a, c]", names(j.takeRecoveringEntries()).toString());
+        j.close();
+    }
+
+    @Test
+    public void
+    compaction() throws Exception {
+        TaskJournal j = TaskJournal.open(mFile, new Codec(), TaskJournal.DEFAULT_SYNC_INTERVAL, 16);
+        long keep = add(j, "keep");
+        j.started(keep);
+        for (int i = 0; i < 100; i++)
+            j.finished(add(j, "tmp" + i), false);
+        // Compacted by threshold at syncer thread. Otherwise, file has 202 records
+        //   (more than 4K bytes).
+        long due = System.currentTimeMillis() + TestEnv.TIMEOUT * 1000;
+        do {
+            Thread.sleep(10);
+            j.sync();
+        } while (mFile.length() >= 1024 && System.currentTimeMillis() < due);
+        assertTrue(mFile.length() < 1024);
+        j.finished(add(j, "tmp"), false);
+        j.compact();
+        j.close();
+
+        j = TaskJournal.open(mFile, new Codec());
+        TaskJournal.Entry[] es = j.takeRecoveringEntries();
+        assertEquals("[keep]", names(es).toString());
+        assertTrue(es[0].isStarted());
+        j.close();
+    }
+
+    /**
+     * Records appended while compaction is writing new file, SHOULD NOT be lost.
+     */
+    @Test
+    public void
+    compactionKeepsConcurrentChanges() throws Exception {
+        final TaskJournal j = TaskJournal.open(mFile, new Codec());
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicReference<Exception> error = new AtomicReference<>(null);
+        Thread compactor = new Thread() {
+            @Override
+            public void
+            run() {
+                try {
+                    while (!stop.get())
+                        j.compact();
+                } catch (IOException e) {
+                    error.set(e);
+                }
+            }
+        };
+        compactor.start();
+        Set<String> live = new HashSet<>();
+        Set<String> started = new HashSet<>();
+        long[] ids = new long[2000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = add(j, "t" + i);
+            live.add("t" + i);
+            if (0 == i % 3) {
+                j.started(ids[i]);
+                started.add("t" + i);
+            }
+            if (i > 0 && 0 == i % 2) {
+                j.finished(ids[i - 1], false);
+                live.remove("t" + (i - 1));
+                started.remove("t" + (i - 1));
+            }
+        }
+        stop.set(true);
+        compactor.join();
+        assertNull(error.get());
+        j.close();
+
+        TaskJournal j2 = TaskJournal.open(mFile, new Codec());
+        Set<String> recoveredStarted = new HashSet<>();
+        TaskJournal.Entry[] es = j2.takeRecoveringEntries();
+        for (TaskJournal.Entry e : es) {
+            if (e.isStarted())
+                recoveredStarted.add(new String(e.desc, StandardCharsets.UTF_8));
+        }
+        assertEquals(live, new HashSet<>(names(es)));
+        assertEquals(started, recoveredStarted);
+        j2.close();
+    }
+}
@@ -0,0 +1,217 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+package free.yhc.baselib.async;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import free.yhc.baselib.adapter.HandlerAdapter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TaskManagerTest {
+    private static HandlerAdapter sOwner;
+
+    private static class Job extends TmTask<Integer> {
+        final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch mRelease;
+        private final List<String> mLog;
+
+        Job(String name, List<String> log, CountDownLatch release) {
+            super(name, sOwner, ThreadEx.TASK_PRIORITY_NORM, false);
+            mLog = log;
+            mRelease = release;
+        }
+
+        Job(CountDownLatch release) {
+            this("job", null, release);
+        }
+
+        @Override
+        protected Integer
+        doAsync() throws InterruptedException {
+            if (null != mLog) {
+                synchronized (mLog) {
+                    mLog.add(getName());
+                }
+            }
+            started.countDown();
+            if (null != mRelease)
+                TestEnv.await(mRelease);
+            return 0;
+        }
+    }
+
+    @BeforeClass
+    public static void
+    setUpClass() {
+        sOwner = TestEnv.owner();
+    }
+
+    @After
+    public void
+    tearDown() {
+        TestEnv.checkUncaught();
+    }
+
+    private static int
+    typeIndexSize(TaskManager tm) throws Exception {
+        Field f = TaskManager.class.getDeclaredField("mTypeIndex");
+        f.setAccessible(true);
+        return ((Map)f.get(tm)).size();
+    }
+
+    @Test
+    public void
+    getTasksViewOfUnknownType() throws Exception {
+        TaskManager tm = TaskManager.create(sOwner, 1, 0, null);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(tm.getTasksView("unknown" + i).isEmpty());
+            assertEquals(0, tm.getTasks("unknown" + i).length);
+        }
+        assertEquals(0, typeIndexSize(tm));
+    }
+
+    @Test
+    public void
+    getTasksViewIsLive() throws Exception {
+        TaskManager tm = TaskManager.create(sOwner, 2, 0, null);
+        CountDownLatch release = new CountDownLatch(1);
+        Job j0 = new Job(release);
+        Job j1 = new Job(release);
+        try {
+            assertTrue(tm.addTask(j0, j0, "type", null));
+            Collection<TmTask> view = tm.getTasksView("type");
+            assertEquals(1, view.size());
+            assertTrue(tm.addTask(j1, j1, "type", null));
+            assertEquals(2, view.size());
+            assertTrue(view.contains(j1));
+        } finally {
+            release.countDown();
+        }
+        j0.toFuture().get(TestEnv.TIMEOUT, TimeUnit.SECONDS);
+        j1.toFuture().get(TestEnv.TIMEOUT, TimeUnit.SECONDS);
+        TestEnv.syncOwner();
+        assertEquals(1, typeIndexSize(tm));
+    }
+
+    /**
+     * Task parked by quota SHOULD be run before tasks enqueued after it, when it is unparked.
+     */
+    @Test
+    public void
+    unparkedTaskKeepsItsTurn() throws Exception {
+        TaskManager tm = TaskManager.create(sOwner, 2, 0, null);
+        tm.setTypeQuota("A", 1);
+        List<String> log = new ArrayList<>();
+        CountDownLatch releaseA = new CountDownLatch(1);
+        CountDownLatch releaseB = new CountDownLatch(1);
+        Job a0 = new Job("a0", log, releaseA);
+        Job a1 = new Job("a1", log, releaseB);
+        Job b0 = new Job("b0", log, releaseB);
+        Job b1 = new Job("b1", log, null);
+        try {
+            assertTrue(tm.addTask(a0, a0, "A", null));
+            TestEnv.await(a0.started);
+            // Parked. Quota of "A" is full.
+            assertTrue(tm.addTask(a1, a1, "A", null));
+            assertTrue(tm.addTask(b0, b0, "B", null));
+            TestEnv.await(b0.started);
+            // Waits for slot.
+            assertTrue(tm.addTask(b1, b1, "B", null));
+            assertEquals(ThreadEx.State.READY, a1.getState());
+            assertEquals(ThreadEx.State.READY, b1.getState());
+            // a1 is unparked, and takes slot of a0.
+            releaseA.countDown();
+            TestEnv.await(a1.started);
+            assertEquals(ThreadEx.State.READY, b1.getState());
+        } finally {
+            releaseA.countDown();
+            releaseB.countDown();
+        }
+        b1.toFuture().get(TestEnv.TIMEOUT, TimeUnit.SECONDS);
+        TestEnv.syncOwner();
+        synchronized (log) {
+            assertEquals("a1", log.get(2));
+            assertEquals("b1", log.get(3));
+        }
+    }
+
+    /**
+     * Run task using itself as task id, and return weak reference to it.
+     */
+    private static WeakReference<Job>
+    runSelfIdentified(TaskManager tm, long[] id) throws Exception {
+        Job j = new Job(null);
+        id[0] = j.getId();
+        assertTrue(tm.addTask(j));
+        j.toFuture().get(TestEnv.TIMEOUT, TimeUnit.SECONDS);
+        TestEnv.syncOwner();
+        return new WeakReference<>(j);
+    }
+
+    /**
+     * History SHOULD NOT keep task alive even if task is it's own task id.
+     */
+    @Test
+    public void
+    historyDoesNotKeepTask() throws Exception {
+        TaskManager tm = TaskManager.create(sOwner, 1, 0, null);
+        TaskHistory history = new TaskHistory(4);
+        tm.setHistory(history);
+        long[] id = new long[1];
+        WeakReference<Job> ref = runSelfIdentified(tm, id);
+        for (int i = 0; i < 100 && null != ref.get(); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+        assertEquals(1, history.size());
+        assertEquals(id[0], history.get(0).tid);
+    }
+}
@@ -0,0 +1,183 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+package free.yhc.baselib.async;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import free.yhc.baselib.adapter.HandlerAdapter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TaskReadyQTest {
+    private static HandlerAdapter sOwner;
+
+    private static class Job extends TmTask<Integer> {
+        Job(String name, int priority) {
+            super(name, sOwner, priority, false);
+        }
+
+        @Override
+        protected Integer
+        doAsync() {
+            return 0;
+        }
+    }
+
+    @BeforeClass
+    public static void
+    setUpClass() {
+        sOwner = TestEnv.owner();
+    }
+
+    @Test
+    public void
+    priorityAndFifo() {
+        TaskManagerBase.TaskReadyQ q = new TaskManagerBase.TaskReadyQ();
+        Job low = new Job("low", ThreadEx.TASK_PRIORITY_MIN);
+        Job high0 = new Job("high0", ThreadEx.TASK_PRIORITY_MAX);
+        Job norm = new Job("norm", ThreadEx.TASK_PRIORITY_NORM);
+        Job high1 = new Job("high1", ThreadEx.TASK_PRIORITY_MAX);
+        assertEquals(0, q.peekPriority());
+        assertNull(q.deQ());
+        assertTrue(q.enQ(low));
+        assertTrue(q.enQ(high0));
+        assertTrue(q.enQ(norm));
+        assertTrue(q.enQ(high1));
+        assertFalse(q.enQ(norm));
+        assertEquals(4, q.size());
+        assertEquals(ThreadEx.TASK_PRIORITY_MAX, q.peekPriority());
+        assertSame(high0, q.deQ());
+        assertSame(high1, q.deQ());
+        assertEquals(ThreadEx.TASK_PRIORITY_NORM, q.peekPriority());
+        assertSame(norm, q.deQ());
+        assertSame(low, q.deQ());
+        assertNull(q.deQ());
+        assertEquals(0, q.size());
+    }
+
+    @Test
+    public void
+    remove() {
+        TaskManagerBase.TaskReadyQ q = new TaskManagerBase.TaskReadyQ();
+        Job j0 = new Job("j0", ThreadEx.TASK_PRIORITY_NORM);
+        Job j1 = new Job("j1", ThreadEx.TASK_PRIORITY_NORM);
+        Job high = new Job("high", ThreadEx.TASK_PRIORITY_MAX);
+        q.enQ(j0);
+        q.enQ(j1);
+        q.enQ(high);
+        assertTrue(q.remove(high));
+        assertFalse(q.remove(high));
+        assertFalse(q.contains(high));
+        assertEquals(ThreadEx.TASK_PRIORITY_NORM, q.peekPriority());
+        assertTrue(q.remove(j0));
+        assertSame(j1, q.deQ());
+        assertEquals(0, q.size());
+    }
+
+    @Test
+    public void
+    aging() {
+        long now = System.nanoTime();
+        long sec = TimeUnit.SECONDS.toNanos(1);
+        Job low = new Job("low", ThreadEx.TASK_PRIORITY_MIN);
+        Job high = new Job("high", ThreadEx.TASK_PRIORITY_MAX);
+
+        // No aging. Waiting long doesn't matter.
+        TaskManagerBase.TaskReadyQ q = new TaskManagerBase.TaskReadyQ();
+        q.enQ(low, now - 100 * sec);
+        q.enQ(high, now);
+        assertSame(high, q.deQ());
+
+        // Aged by 10. It's higher than MAX.
+        q = new TaskManagerBase.TaskReadyQ();
+        q.setAgingInterval(1000);
+        q.enQ(low, now - 10 * sec - sec / 2);
+        q.enQ(high, now);
+        assertEquals(ThreadEx.TASK_PRIORITY_MIN, q.peekPriority());
+        assertSame(low, q.deQ());
+        assertEquals(now - 10 * sec - sec / 2, q.lastEnQTime());
+
+        // Aged by 9. Tie. Higher original priority wins.
+        q = new TaskManagerBase.TaskReadyQ();
+        q.setAgingInterval(1000);
+        q.enQ(low, now - 9 * sec - sec / 2);
+        q.enQ(high, now);
+        assertSame(high, q.deQ());
+        assertSame(low, q.deQ());
+    }
+
+    @Test
+    public void
+    enQFront() {
+        long now = System.nanoTime();
+        TaskManagerBase.TaskReadyQ q = new TaskManagerBase.TaskReadyQ();
+        Job j0 = new Job("j0", ThreadEx.TASK_PRIORITY_NORM);
+        Job j1 = new Job("j1", ThreadEx.TASK_PRIORITY_NORM);
+        Job j2 = new Job("j2", ThreadEx.TASK_PRIORITY_NORM);
+        Job j3 = new Job("j3", ThreadEx.TASK_PRIORITY_NORM);
+        q.enQ(j0, now - 40);
+        q.enQ(j1, now - 30);
+        assertSame(j0, q.deQ());
+        long t0 = q.lastEnQTime();
+        assertSame(j1, q.deQ());
+        long t1 = q.lastEnQTime();
+        q.enQ(j2, now - 20);
+        q.enQ(j3, now - 10);
+        // Put back out of time order.
+        assertTrue(q.enQFront(j1, t1));
+        assertTrue(q.enQFront(j0, t0));
+        assertFalse(q.enQFront(j0, t0));
+        assertEquals(4, q.size());
+        assertTrue(q.contains(j0));
+        assertSame(j0, q.deQ());
+        assertEquals(t0, q.lastEnQTime());
+        assertSame(j1, q.deQ());
+        assertEquals(t1, q.lastEnQTime());
+        assertSame(j2, q.deQ());
+        // Removing task put back.
+        q.enQFront(j0, t0);
+        assertTrue(q.remove(j0));
+        assertSame(j3, q.deQ());
+        assertNull(q.deQ());
+    }
+}
@@ -0,0 +1,128 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import free.yhc.baselib.Baselib;
+import free.yhc.baselib.Logger;
+import free.yhc.baselib.adapter.LoggerAdapter;
+import free.yhc.baselib.adapter.javase.JLooperHandlerAdapter;
+import free.yhc.baselib.adapter.javase.JNetConnAdapter;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Library can be initialized only once per process. So, all tests share it.
+ */
+final class TestEnv {
+    static final long TIMEOUT = 10; // seconds
+
+    private static JLooperHandlerAdapter sOwner = null;
+    // Errors thrown at threads other than test thread (ex. P.bug at worker thread).
+    private static final List<Throwable> sUncaught = new ArrayList<>();
+
+    private TestEnv() { }
+
+    @NotNull
+    static synchronized JLooperHandlerAdapter
+    owner() {
+        if (null != sOwner)
+            return sOwner;
+        sOwner = new JLooperHandlerAdapter("test-owner", true, JLooperHandlerAdapter.IdleStrategy.PARK, 64);
+        Baselib.initLibrary(sOwner,
+                            new LoggerAdapter() {
+                                @Override
+                                public void
+                                write(@NotNull Logger.LogLv lv, @NotNull String msg) { }
+                            },
+                            new JNetConnAdapter(),
+                            Baselib.ExecMode.WORKER_POOL);
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void
+            uncaughtException(Thread t, Throwable e) {
+                synchronized (sUncaught) {
+                    sUncaught.add(e);
+                }
+            }
+        });
+        return sOwner;
+    }
+
+    static void
+    await(@NotNull CountDownLatch latch) throws InterruptedException {
+        assertTrue("Timed out", latch.await(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Run {@code r} at owner and wait until it is done.
+     * Events posted to owner before this, are handled before this returns.
+     */
+    static void
+    syncOwner() throws InterruptedException {
+        final CountDownLatch l = new CountDownLatch(1);
+        assertTrue(owner().post(new Runnable() {
+            @Override
+            public void
+            run() {
+                l.countDown();
+            }
+        }));
+        await(l);
+    }
+
+    /**
+     * Fail if there is error thrown at other threads.
+     */
+    static void
+    checkUncaught() {
+        synchronized (sUncaught) {
+            if (!sUncaught.isEmpty()) {
+                Throwable e = sUncaught.get(0);
+                sUncaught.clear();
+                fail("Uncaught at other thread: " + e);
+            }
+        }
+    }
+}
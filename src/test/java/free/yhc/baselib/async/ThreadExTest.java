@@ -0,0 +1,394 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import free.yhc.baselib.adapter.HandlerAdapter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ThreadExTest {
+    private static HandlerAdapter sOwner;
+    // Deferred completion state. See ThreadEx.DEFER_XXX.
+    private static final int DEFER_RETURNED = 3;
+    private static Field sDeferField;
+
+    /**
+     * Completion is deferred, and completed by other thread just when doAsync() returns.
+     */
+    private static class DeferTask extends Task<Integer> {
+        final AtomicBoolean returning = new AtomicBoolean(false);
+
+        DeferTask() {
+            super("DeferTask", sOwner, ThreadEx.TASK_PRIORITY_NORM, false);
+        }
+
+        @Override
+        protected Integer
+        doAsync() {
+            assertTrue(deferCompletion());
+            returning.set(true);
+            return -1; // ignored.
+        }
+    }
+
+    /**
+     * Background job waits until released or interrupted.
+     */
+    private static class BlockTask extends Task<Integer> {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean ran = new AtomicBoolean(false);
+
+        BlockTask() {
+            super("BlockTask", sOwner, ThreadEx.TASK_PRIORITY_NORM, true);
+        }
+
+        @Override
+        protected Integer
+        doAsync() throws InterruptedException {
+            ran.set(true);
+            started.countDown();
+            release.await();
+            return 1;
+        }
+    }
+
+    private static class Counter extends TaskBase.EventListener<Task, Object> {
+        final AtomicInteger postRun = new AtomicInteger(0);
+        final AtomicInteger cancelled = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void
+        onPostRun(@NotNull Task task, Object result, Exception ex) {
+            postRun.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void
+        onCancelled(@NotNull Task task, Object param) {
+            cancelled.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    private static int
+    deferState(@NotNull ThreadEx t) {
+        try {
+            return ((AtomicInteger)sDeferField.get(t)).get();
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @BeforeClass
+    public static void
+    setUpClass() {
+        sOwner = TestEnv.owner();
+        try {
+            sDeferField = ThreadEx.class.getDeclaredField("mDefer");
+        } catch (NoSuchFieldException e) {
+            throw new AssertionError(e);
+        }
+        sDeferField.setAccessible(true);
+    }
+
+    @After
+    public void
+    tearDown() {
+        TestEnv.checkUncaught();
+    }
+
+    @Test
+    public void
+    completeDeferredRightAfterDoAsyncReturns() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            final DeferTask t = new DeferTask();
+            final int expected = i;
+            Counter c = new Counter();
+            //noinspection unchecked
+            t.addEventListener(c);
+            Thread completer = new Thread(new Runnable() {
+                @Override
+                public void
+                run() {
+                    //noinspection StatementWithEmptyBody
+                    while (!t.returning.get()) { }
+                    // Complete just after worker decides to leave job to completeDeferred().
+                    //noinspection StatementWithEmptyBody
+                    while (DEFER_RETURNED != deferState(t)) { }
+                    assertTrue(t.completeDeferred(expected, null));
+                }
+            });
+            completer.start();
+            assertTrue(t.start());
+            TestEnv.await(c.done);
+            completer.join();
+            TestEnv.syncOwner();
+            TestEnv.checkUncaught();
+            assertEquals(1, c.postRun.get());
+            assertEquals(ThreadEx.State.TERMINATED, t.getState());
+            assertEquals(Integer.valueOf(expected), t.getResult());
+            assertNull(t.getException());
+        }
+    }
+
+    @Test
+    public void
+    cancelBeforeStart() throws Exception {
+        BlockTask t = new BlockTask();
+        Counter c = new Counter();
+        //noinspection unchecked
+        t.addEventListener(c);
+        assertTrue(t.cancel(null, false));
+        assertFalse(t.start());
+        assertFalse(t.cancel(null, false));
+        TestEnv.await(c.done);
+        TestEnv.syncOwner();
+        assertEquals(ThreadEx.State.TERMINATED_CANCELLED, t.getState());
+        assertEquals(1, c.cancelled.get());
+        assertEquals(0, c.postRun.get());
+        assertFalse(t.ran.get());
+        assertTrue(t.toFuture().isCancelled());
+    }
+
+    @Test
+    public void
+    cancelWhileRunning() throws Exception {
+        BlockTask t = new BlockTask();
+        Counter c = new Counter();
+        //noinspection unchecked
+        t.addEventListener(c);
+        assertTrue(t.start());
+        TestEnv.await(t.started);
+        assertTrue(t.isRunning());
+        // Interrupted.
+        assertTrue(t.cancel(null, true));
+        assertFalse(t.cancel(null, true));
+        TestEnv.await(c.done);
+        TestEnv.syncOwner();
+        assertEquals(ThreadEx.State.TERMINATED_CANCELLED, t.getState());
+        assertEquals(1, c.cancelled.get());
+        assertEquals(0, c.postRun.get());
+        assertTrue(t.isCancel());
+    }
+
+    @Test
+    public void
+    startTwice() throws Exception {
+        BlockTask t = new BlockTask();
+        Counter c = new Counter();
+        //noinspection unchecked
+        t.addEventListener(c);
+        assertTrue(t.start());
+        assertFalse(t.start());
+        TestEnv.await(t.started);
+        assertFalse(t.start());
+        t.release.countDown();
+        TestEnv.await(c.done);
+        TestEnv.syncOwner();
+        assertEquals(ThreadEx.State.TERMINATED, t.getState());
+        assertEquals(1, c.postRun.get());
+    }
+
+    @Test
+    public void
+    cancelAfterDone() throws Exception {
+        BlockTask t = new BlockTask();
+        Counter c = new Counter();
+        //noinspection unchecked
+        t.addEventListener(c);
+        t.release.countDown();
+        assertTrue(t.start());
+        TestEnv.await(c.done);
+        TestEnv.syncOwner();
+        assertEquals(ThreadEx.State.TERMINATED, t.getState());
+        assertFalse(t.cancel(null, true));
+        TestEnv.syncOwner();
+        assertEquals(ThreadEx.State.TERMINATED, t.getState());
+        assertEquals(Integer.valueOf(1), t.getResult());
+        assertEquals(0, c.cancelled.get());
+        assertEquals(1, c.postRun.get());
+    }
+
+    @Test
+    public void
+    exceptionOfDoAsync() throws Exception {
+        Task<Integer> t = new Task<Integer>("FailTask", sOwner, ThreadEx.TASK_PRIORITY_NORM, false) {
+            @Override
+            protected Integer
+            doAsync() throws Exception {
+                throw new IllegalStateException("fail");
+            }
+        };
+        Counter c = new Counter();
+        //noinspection unchecked
+        t.addEventListener(c);
+        assertTrue(t.start());
+        TestEnv.await(c.done);
+        TestEnv.syncOwner();
+        assertEquals(ThreadEx.State.TERMINATED, t.getState());
+        assertTrue(t.getException() instanceof IllegalStateException);
+        assertNull(t.getResult());
+    }
+
+    /**
+     * Owner accepting only first {@code accepts} posts.
+     */
+    private static class RejectingOwner implements HandlerAdapter {
+        private final AtomicInteger mAccepts;
+
+        RejectingOwner(int accepts) {
+            mAccepts = new AtomicInteger(accepts);
+        }
+
+        @NotNull
+        @Override
+        public Thread
+        getThread() {
+            return sOwner.getThread();
+        }
+
+        @Override
+        public boolean
+        post(@NotNull Runnable r) {
+            return mAccepts.getAndDecrement() > 0 && sOwner.post(r);
+        }
+    }
+
+    /**
+     * Failure of posting callback SHOULD NOT block later state transitions.
+     */
+    @Test
+    public void
+    postFailureDoesNotBlockTransition() throws Exception {
+        final Task<Integer> t = new Task<Integer>("Task", new RejectingOwner(1),
+                                                  ThreadEx.TASK_PRIORITY_NORM, false) {
+            @Override
+            protected Integer
+            doAsync() {
+                return 1;
+            }
+        };
+        try {
+            t.startSync();
+            fail();
+        } catch (AssertionError ignored) { }
+        final AtomicBoolean cancelled = new AtomicBoolean(true);
+        Thread th = new Thread() {
+            @Override
+            public void
+            run() {
+                cancelled.set(t.cancel(false));
+            }
+        };
+        th.start();
+        th.join(TestEnv.TIMEOUT * 1000);
+        assertFalse(th.isAlive());
+        assertFalse(cancelled.get());
+        assertEquals(ThreadEx.State.DONE, t.getState());
+    }
+
+    /**
+     * Only the latest progress is delivered while owner is busy, in coalescing mode.
+     */
+    @Test
+    public void
+    progressCoalescing() throws Exception {
+        Task<Integer> t = new Task<Integer>("ProgTask", sOwner, ThreadEx.TASK_PRIORITY_NORM, false) {
+            @Override
+            protected Integer
+            doAsync() {
+                publishProgressInit(100);
+                for (int i = 1; i <= 100; i++)
+                    publishProgress(i);
+                return 0;
+            }
+        };
+        assertTrue(t.setPublishProgressMinInterval(0));
+        assertTrue(t.setProgressCoalescing(true));
+        final List<Long> progs = Collections.synchronizedList(new ArrayList<Long>());
+        Counter c = new Counter() {
+            @Override
+            public void
+            onProgress(@NotNull Task task, long progress) {
+                progs.add(progress);
+            }
+        };
+        //noinspection unchecked
+        t.addEventListener(c);
+        final CountDownLatch ownerBusy = new CountDownLatch(1);
+        assertTrue(sOwner.post(new Runnable() {
+            @Override
+            public void
+            run() {
+                try {
+                    TestEnv.await(ownerBusy);
+                } catch (InterruptedException ignored) { }
+            }
+        }));
+        try {
+            assertTrue(t.start());
+            assertEquals(0, (int)t.toFuture().get(TestEnv.TIMEOUT, TimeUnit.SECONDS));
+        } finally {
+            ownerBusy.countDown();
+        }
+        TestEnv.await(c.done);
+        TestEnv.syncOwner();
+        assertEquals(1, progs.size());
+        assertEquals(100, (long)progs.get(0));
+    }
+}
@@ -0,0 +1,153 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+package free.yhc.baselib.async;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import free.yhc.baselib.adapter.HandlerAdapter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TmTaskGroupTest {
+    private static HandlerAdapter sOwner;
+
+    private static class Job extends TmTask<Integer> {
+        final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch mRelease;
+
+        Job(String name, CountDownLatch release) {
+            super(name, sOwner, ThreadEx.TASK_PRIORITY_NORM, false);
+            mRelease = release;
+        }
+
+        @Override
+        protected Integer
+        doAsync() throws InterruptedException {
+            started.countDown();
+            if (null != mRelease)
+                TestEnv.await(mRelease);
+            return 0;
+        }
+    }
+
+    private static class Plain extends Task<Integer> {
+        Plain() {
+            super("plain", sOwner, ThreadEx.TASK_PRIORITY_NORM, false);
+        }
+
+        @Override
+        protected Integer
+        doAsync() {
+            return 0;
+        }
+    }
+
+    private static class CancelWaiter extends TaskBase.EventListener<TaskGroup, Object> {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void
+        onCancelled(@NotNull TaskGroup tg, Object param) {
+            done.countDown();
+        }
+    }
+
+    @BeforeClass
+    public static void
+    setUpClass() {
+        sOwner = TestEnv.owner();
+    }
+
+    @After
+    public void
+    tearDown() {
+        TestEnv.checkUncaught();
+    }
+
+    @Test
+    public void
+    addTasksRejectsNonTmTask() {
+        TaskManagerBase tm = TaskManagerBase.create(sOwner, 1);
+        Job j = new Job("j", null);
+        TmTaskGroup tg = new TmTaskGroup.Builder<>(tm)
+                .setTasks(new TmTask[] { j })
+                .create();
+        try {
+            tg.addTasks(new Task[] { new Job("j1", null), new Plain() });
+            fail("Plain task is added to TmTaskGroup");
+        } catch (IllegalArgumentException ignored) { }
+        // Nothing is added.
+        assertEquals(1, tg.getTasks().length);
+        assertTrue(tg.addTask(new Job("j2", null)));
+        assertEquals(2, tg.getTasks().length);
+    }
+
+    @Test
+    public void
+    cancelSubTaskNotHandedToTaskManager() throws InterruptedException {
+        TaskManagerBase tm = TaskManagerBase.create(sOwner, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        Job j0 = new Job("j0", release);
+        Job j1 = new Job("j1", null);
+        TaskGroup tg = new TmTaskGroup.Builder<>(tm)
+                .setTasks(new TmTask[] { j0, j1 })
+                .setMaxParallel(1)
+                .create();
+        CancelWaiter w = new CancelWaiter();
+        //noinspection unchecked
+        tg.addEventListener(sOwner, w);
+        try {
+            assertTrue(tg.start());
+            TestEnv.await(j0.started);
+            // 'j1' is waiting for max-parallel slot. So, it is not in TaskManager.
+            assertEquals(ThreadEx.State.READY, j1.getState());
+            assertTrue(tg.cancel(null, false));
+        } finally {
+            release.countDown();
+        }
+        TestEnv.await(w.done);
+        TestEnv.syncOwner();
+        assertTrue(j1.isCancel());
+        assertEquals(ThreadEx.State.TERMINATED_CANCELLED, j1.getState());
+    }
+}
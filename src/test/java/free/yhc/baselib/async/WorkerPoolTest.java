@@ -0,0 +1,110 @@
+/******************************************************************************
+ * Copyright (C) 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of free.yhc.baselib
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+package free.yhc.baselib.async;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertTrue;
+
+public class WorkerPoolTest {
+    @BeforeClass
+    public static void
+    setUpClass() {
+        TestEnv.owner();
+    }
+
+    private static Thread
+    threadOf(Executor executor) throws InterruptedException {
+        final AtomicReference<Thread> thread = new AtomicReference<>(null);
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void
+            run() {
+                thread.set(Thread.currentThread());
+                done.countDown();
+            }
+        });
+        TestEnv.await(done);
+        return thread.get();
+    }
+
+    @Test
+    public void
+    workerIsNamedDaemon() throws InterruptedException {
+        Thread t = threadOf(new WorkerPool("test-pool", 1, 1000));
+        assertTrue(t.getName().startsWith("test-pool-"));
+        assertTrue(t.isDaemon());
+    }
+
+    @Test
+    public void
+    overflowWorkerIsNamedDaemon() throws InterruptedException {
+        WorkerPool pool = new WorkerPool("test-pool", 1, 1000);
+        final CountDownLatch release = new CountDownLatch(1);
+        pool.execute(new Runnable() {
+            @Override
+            public void
+            run() {
+                try {
+                    TestEnv.await(release);
+                } catch (InterruptedException ignored) { }
+            }
+        });
+        try {
+            Thread t = threadOf(pool);
+            assertTrue(t.getName().startsWith("test-pool-overflow-"));
+            assertTrue(t.isDaemon());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void
+    virtualThreadExecutorThreadIsNamed() throws InterruptedException {
+        VirtualThreadExecutor ve = VirtualThreadExecutor.get();
+        Thread t = threadOf(ve);
+        assertTrue(t.isDaemon());
+        if (!ve.isVirtual())
+            assertTrue(t.getName().startsWith("VirtualThreadExecutor-fallback-"));
+    }
+}